@@ -0,0 +1,71 @@
+package org.codelibs.elasticsearch.velocity.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.TemplateScript;
+
+/**
+ * Temporary node home with a VelocityScriptEngine, used without a cluster.
+ */
+final class BenchmarkEnvironment {
+
+    static final String MACRO_LIBRARY = "#macro(macroSearchQuery){\"query\":{\"match\":{\"${my_field}\":\"${my_value}\"}},\"size\":\"${my_size}\"}#end\n"
+            + "#macro(macroMatch $field $value){\"match\":{\"$field\":\"$value\"}}#end\n";
+
+    final Path homeDir;
+
+    final Path configDir;
+
+    final VelocityScriptEngine engine;
+
+    private BenchmarkEnvironment(final Path homeDir, final Path configDir, final VelocityScriptEngine engine) {
+        this.homeDir = homeDir;
+        this.configDir = configDir;
+        this.engine = engine;
+    }
+
+    /**
+     * @param contextProps context properties file contents by name
+     * @param settings additional node settings
+     */
+    static BenchmarkEnvironment create(final Map<String, String> contextProps, final Settings settings) throws IOException {
+        final Path homeDir = Files.createTempDirectory("velocity-bench");
+        final Path configDir = homeDir.resolve("config");
+        final Path scriptDir = configDir.resolve("scripts");
+        Files.createDirectories(scriptDir);
+        Files.write(scriptDir.resolve("VM_global_library.vm"), MACRO_LIBRARY.getBytes(StandardCharsets.UTF_8));
+
+        final Settings.Builder builder = Settings.builder().put("path.home", homeDir.toString())
+                .put("path.logs", homeDir.resolve("logs").toString()).put(settings);
+        for (final Map.Entry<String, String> entry : contextProps.entrySet()) {
+            final String fileName = entry.getKey() + ".properties";
+            Files.write(configDir.resolve(fileName), entry.getValue().getBytes(StandardCharsets.UTF_8));
+            builder.put("script.velocity.context.props." + entry.getKey(), fileName);
+        }
+        return new BenchmarkEnvironment(homeDir, configDir, new VelocityScriptEngine(builder.build(), configDir));
+    }
+
+    static BenchmarkEnvironment create() throws IOException {
+        return create(Collections.emptyMap(), Settings.EMPTY);
+    }
+
+    TemplateScript.Factory compile(final String name, final String source) {
+        return engine.compile(name, source, TemplateScript.CONTEXT, Collections.emptyMap());
+    }
+
+    void close() throws IOException {
+        engine.close();
+        try (Stream<Path> stream = Files.walk(homeDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
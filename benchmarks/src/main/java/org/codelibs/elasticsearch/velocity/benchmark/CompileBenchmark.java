@@ -0,0 +1,60 @@
+package org.codelibs.elasticsearch.velocity.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.script.TemplateScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures compile() for inline and "##cache" sources. Every invocation
+ * compiles a distinct source, so the engine's template cache does not hide
+ * the parse cost.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompileBenchmark {
+
+    private static final String SOURCE = "{\"query\":{\"bool\":{\"should\":["
+            + "#foreach($term in $terms){\"match\":{\"$my_field\":\"$term\"}}#if($foreach.hasNext),#end#end"
+            + "]}},\"size\":\"${my_size}\"}";
+
+    @Param({ "inline", "cache" })
+    public String type;
+
+    private BenchmarkEnvironment environment;
+
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.create();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        environment.close();
+    }
+
+    @Benchmark
+    public TemplateScript.Factory compile() {
+        final String source = SOURCE + "\n## " + counter++;
+        return environment.compile(null, "cache".equals(type) ? "##cache\n" + source : source);
+    }
+}
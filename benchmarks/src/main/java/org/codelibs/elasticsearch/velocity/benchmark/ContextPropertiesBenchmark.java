@@ -0,0 +1,93 @@
+package org.codelibs.elasticsearch.velocity.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codelibs.elasticsearch.velocity.util.ContextProperties;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.TemplateScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ContextProperties lookups directly and from a template.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContextPropertiesBenchmark {
+
+    /** Number of entries in the allowlist. */
+    @Param({ "100", "100000" })
+    public int entries;
+
+    private BenchmarkEnvironment environment;
+
+    private ContextProperties properties;
+
+    private TemplateScript.Factory factory;
+
+    private Map<String, Object> params;
+
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("my_size=50\n");
+        for (int i = 0; i < entries; i++) {
+            buf.append("allow.").append(i).append("=value").append(i).append('\n');
+        }
+        final Map<String, String> contextProps = new HashMap<>();
+        contextProps.put("props", buf.toString());
+        environment = BenchmarkEnvironment.create(contextProps, Settings.EMPTY);
+
+        properties = new ContextProperties(environment.configDir.resolve("props.properties").toFile());
+
+        factory = environment.compile("props",
+                "{\"size\":\"${props.my_size}\",\"allowed\":#if($props.getAsSet(\"allow\").contains($value))true#{else}false#end}");
+        params = new HashMap<>();
+        params.put("value", "value" + (entries / 2));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        environment.close();
+    }
+
+    @Benchmark
+    public Object get() {
+        return properties.get("my_size");
+    }
+
+    @Benchmark
+    public boolean setContains() {
+        return properties.getAsSet("allow").contains("value" + (index++ % entries));
+    }
+
+    @Benchmark
+    public Object listGet() {
+        return properties.getAsList("allow").get(index++ % entries);
+    }
+
+    @Benchmark
+    public String template() {
+        return factory.newInstance(params).execute();
+    }
+}
@@ -0,0 +1,98 @@
+package org.codelibs.elasticsearch.velocity.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.script.TemplateScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures execute() for templates whose output grows with the number of
+ * terms, with the params passed flat or as nested maps.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecuteBenchmark {
+
+    private static final String FLAT_SOURCE = "{\"query\":{\"bool\":{\"should\":["
+            + "#foreach($term in $terms){\"match\":{\"$my_field\":\"$term\"}}#if($foreach.hasNext),#end#end"
+            + "]}},\"size\":\"${my_size}\"}";
+
+    private static final String NESTED_SOURCE = "{\"query\":{\"bool\":{\"should\":["
+            + "#foreach($term in $query.terms){\"match\":{\"$query.field\":\"$term.value\"}}#if($foreach.hasNext),#end#end"
+            + "]}},\"size\":\"${page.size}\"}";
+
+    /** Number of terms, which drives the output size. */
+    @Param({ "1", "100", "1000" })
+    public int terms;
+
+    @Param({ "flat", "nested" })
+    public String shape;
+
+    private BenchmarkEnvironment environment;
+
+    private TemplateScript.Factory factory;
+
+    private Map<String, Object> params;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.create();
+        params = new HashMap<>();
+        if ("nested".equals(shape)) {
+            factory = environment.compile("execute_nested", NESTED_SOURCE);
+            final List<Object> termList = new ArrayList<>();
+            for (int i = 0; i < terms; i++) {
+                final Map<String, Object> term = new HashMap<>();
+                term.put("value", "term" + i);
+                termList.add(term);
+            }
+            final Map<String, Object> query = new HashMap<>();
+            query.put("field", "category");
+            query.put("terms", termList);
+            final Map<String, Object> page = new HashMap<>();
+            page.put("size", 50);
+            params.put("query", query);
+            params.put("page", page);
+        } else {
+            factory = environment.compile("execute_flat", FLAT_SOURCE);
+            final List<Object> termList = new ArrayList<>();
+            for (int i = 0; i < terms; i++) {
+                termList.add("term" + i);
+            }
+            params.put("my_field", "category");
+            params.put("terms", termList);
+            params.put("my_size", 50);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        environment.close();
+    }
+
+    @Benchmark
+    public String execute() {
+        return factory.newInstance(params).execute();
+    }
+}
@@ -0,0 +1,76 @@
+package org.codelibs.elasticsearch.velocity.benchmark;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.script.TemplateScript;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares macro calls from VM_global_library.vm with the same text written inline.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MacroBenchmark {
+
+    private BenchmarkEnvironment environment;
+
+    private TemplateScript.Factory macroFactory;
+
+    private TemplateScript.Factory macroArgsFactory;
+
+    private TemplateScript.Factory inlineFactory;
+
+    private Map<String, Object> params;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        environment = BenchmarkEnvironment.create();
+        macroFactory = environment.compile("macro", "#macroSearchQuery()");
+        macroArgsFactory = environment.compile("macro_args",
+                "{\"query\":{\"bool\":{\"should\":[#macroMatch($my_field $my_value),#macroMatch(\"msg\" $my_value)]}}}");
+        inlineFactory = environment.compile("inline",
+                "{\"query\":{\"match\":{\"${my_field}\":\"${my_value}\"}},\"size\":\"${my_size}\"}");
+        params = new HashMap<>();
+        params.put("my_field", "category");
+        params.put("my_value", "1");
+        params.put("my_size", "50");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        environment.close();
+    }
+
+    @Benchmark
+    public String macro() {
+        return macroFactory.newInstance(params).execute();
+    }
+
+    @Benchmark
+    public String macroWithArgs() {
+        return macroArgsFactory.newInstance(params).execute();
+    }
+
+    @Benchmark
+    public String inline() {
+        return inlineFactory.newInstance(params).execute();
+    }
+}
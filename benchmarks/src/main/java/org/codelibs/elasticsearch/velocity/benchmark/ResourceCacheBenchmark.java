@@ -0,0 +1,101 @@
+package org.codelibs.elasticsearch.velocity.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.resource.ResourceCache;
+import org.apache.velocity.runtime.resource.ResourceCacheImpl;
+import org.codelibs.elasticsearch.velocity.resource.ConcurrentResourceCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares Velocity's synchronized ResourceCacheImpl with ConcurrentResourceCache
+ * under concurrent lookups, both directly and through RuntimeInstance.getTemplate
+ * on a file resource loader. Run with -t to change the number of threads.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResourceCacheBenchmark {
+
+    private static final int TEMPLATES = 64;
+
+    @Param({ "org.apache.velocity.runtime.resource.ResourceCacheImpl",
+            "org.codelibs.elasticsearch.velocity.resource.ConcurrentResourceCache" })
+    public String cacheClass;
+
+    private Path scriptDir;
+
+    private RuntimeInstance runtimeInstance;
+
+    private ResourceCache cache;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        scriptDir = Files.createTempDirectory("velocity-bench");
+        for (int i = 0; i < TEMPLATES; i++) {
+            Files.write(scriptDir.resolve("templ" + i + ".vm"),
+                    ("{\"query\":{\"match\":{\"${my_field}\":\"${my_value}\"}},\"size\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+
+        runtimeInstance = new RuntimeInstance();
+        runtimeInstance.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, "org.apache.velocity.runtime.log.NullLogChute");
+        runtimeInstance.setProperty(RuntimeConstants.RESOURCE_MANAGER_CACHE_CLASS, cacheClass);
+        runtimeInstance.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, scriptDir.toString());
+        runtimeInstance.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        runtimeInstance.setProperty("file.resource.loader.modificationCheckInterval", "0");
+        runtimeInstance.init();
+        for (int i = 0; i < TEMPLATES; i++) {
+            runtimeInstance.getTemplate("templ" + i + ".vm");
+        }
+
+        cache = ResourceCacheImpl.class.getName().equals(cacheClass) ? new ResourceCacheImpl() : new ConcurrentResourceCache();
+        cache.initialize(runtimeInstance);
+        for (int i = 0; i < TEMPLATES; i++) {
+            cache.put("1templ" + i + ".vm", runtimeInstance.getTemplate("templ" + i + ".vm"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> stream = Files.walk(scriptDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object cacheGet() {
+        return cache.get("1templ" + ThreadLocalRandom.current().nextInt(TEMPLATES) + ".vm");
+    }
+
+    @Benchmark
+    public Template getTemplate() {
+        return runtimeInstance.getTemplate("templ" + ThreadLocalRandom.current().nextInt(TEMPLATES) + ".vm");
+    }
+}
@@ -1,34 +1,172 @@
 package org.codelibs.elasticsearch.velocity;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
+import org.codelibs.elasticsearch.velocity.action.TransportVelocityBatchRenderAction;
+import org.codelibs.elasticsearch.velocity.action.TransportVelocityStatsAction;
+import org.codelibs.elasticsearch.velocity.action.VelocityBatchRenderAction;
+import org.codelibs.elasticsearch.velocity.action.VelocityStatsAction;
+import org.codelibs.elasticsearch.velocity.ingest.VelocityProcessor;
+import org.codelibs.elasticsearch.velocity.rest.RestVelocityBatchRenderAction;
+import org.codelibs.elasticsearch.velocity.rest.RestVelocityStatsAction;
+import org.codelibs.elasticsearch.velocity.script.StoredScriptPrecompiler;
+import org.codelibs.elasticsearch.velocity.script.VelocityBytesScript;
 import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.codelibs.elasticsearch.velocity.script.VelocitySlowLog;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.CircuitBreakerPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
 
-public class VelocityPlugin extends Plugin implements ScriptPlugin {
+public class VelocityPlugin extends Plugin implements ActionPlugin, CircuitBreakerPlugin, IngestPlugin, ScriptPlugin {
+
+    public static final String BREAKER_NAME = "velocity";
+
+    public static final Setting<ByteSizeValue> SETTING_BREAKER_VELOCITY_LIMIT =
+            Setting.memorySizeSetting("breaker.velocity.limit", "5%", Property.NodeScope);
+
+    public static final Setting<Double> SETTING_BREAKER_VELOCITY_OVERHEAD =
+            Setting.doubleSetting("breaker.velocity.overhead", 1.0d, 0.0d, Property.NodeScope);
 
     private Path configPath;
 
+    private VelocityScriptEngine scriptEngine;
+
+    private CircuitBreaker circuitBreaker;
+
     public VelocityPlugin(final Settings settings, Path configPath) {
         this.configPath = configPath;
     }
 
     @Override
     public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
-        return new VelocityScriptEngine(settings, configPath);
+        scriptEngine = new VelocityScriptEngine(settings, configPath);
+        if (circuitBreaker != null) {
+            scriptEngine.setCircuitBreaker(circuitBreaker);
+        }
+        return scriptEngine;
+    }
+
+    @Override
+    public List<ScriptContext<?>> getContexts() {
+        return Collections.singletonList(VelocityBytesScript.CONTEXT);
+    }
+
+    @Override
+    public BreakerSettings getCircuitBreaker(final Settings settings) {
+        return new BreakerSettings(BREAKER_NAME, SETTING_BREAKER_VELOCITY_LIMIT.get(settings).getBytes(),
+                SETTING_BREAKER_VELOCITY_OVERHEAD.get(settings), CircuitBreaker.Type.MEMORY, CircuitBreaker.Durability.TRANSIENT);
+    }
+
+    @Override
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        if (scriptEngine != null) {
+            scriptEngine.setCircuitBreaker(circuitBreaker);
+        }
+    }
+
+    @Override
+    public Collection<Object> createComponents(final Client client, final ClusterService clusterService, final ThreadPool threadPool,
+            final ResourceWatcherService resourceWatcherService, final ScriptService scriptService,
+            final NamedXContentRegistry xContentRegistry, final Environment environment, final NodeEnvironment nodeEnvironment,
+            final NamedWriteableRegistry namedWriteableRegistry, final IndexNameExpressionResolver indexNameExpressionResolver,
+            final Supplier<RepositoriesService> repositoriesServiceSupplier) {
+        if (scriptEngine != null) {
+            scriptEngine.setClusterSettings(clusterService.getClusterSettings());
+            scriptEngine.startWatching(threadPool);
+            scriptEngine.startWatchingScripts(resourceWatcherService);
+            scriptEngine.loadTemplateStore(threadPool.generic());
+            if (VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_WARMUP_ENABLED.get(clusterService.getSettings())) {
+                scriptEngine.warmUp(threadPool.generic());
+            }
+            if (VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_PRECOMPILE_ENABLED.get(clusterService.getSettings())) {
+                clusterService.addListener(new StoredScriptPrecompiler(scriptEngine, threadPool));
+            }
+            return Collections.singletonList(scriptEngine);
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(final Processor.Parameters parameters) {
+        return Collections.singletonMap(VelocityProcessor.TYPE, new VelocityProcessor.Factory(parameters.scriptService));
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(new ActionHandler<>(VelocityStatsAction.INSTANCE, TransportVelocityStatsAction.class),
+                new ActionHandler<>(VelocityBatchRenderAction.INSTANCE, TransportVelocityBatchRenderAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(final Settings settings, final RestController restController,
+            final ClusterSettings clusterSettings, final IndexScopedSettings indexScopedSettings, final SettingsFilter settingsFilter,
+            final IndexNameExpressionResolver indexNameExpressionResolver, final Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(new RestVelocityStatsAction(), new RestVelocityBatchRenderAction());
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(final Settings settings) {
+        return Collections.singletonList(new FixedExecutorBuilder(settings, TransportVelocityBatchRenderAction.THREAD_POOL_NAME,
+                EsExecutors.allocatedProcessors(settings), 1000));
     }
 
     @Override
     public List<Setting<?>> getSettings() {
-        return Arrays.asList(VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_PROPS,
-                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_CONTEXT_PROPS);
+        final List<Setting<?>> settings = new ArrayList<>(Arrays.asList(VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_PROPS,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_CONTEXT_PROPS, VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_CACHE_MAX_SIZE,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_CACHE_EXPIRE, VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_WARMUP_ENABLED,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_PRECOMPILE_ENABLED,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_STORE_ENABLED,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_MAX_SIZE,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_EXPIRE,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_SPECIALIZE_ENABLED,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_MACRO_INLINE_ENABLED,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_RENDER_MAX_TIME,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_RENDER_MAX_VISITS,
+                VelocityScriptEngine.SETTING_SCRIPT_VELOCITY_RENDER_MAX_OUTPUT_SIZE, SETTING_BREAKER_VELOCITY_LIMIT,
+                SETTING_BREAKER_VELOCITY_OVERHEAD));
+        settings.addAll(VelocitySlowLog.getSettings());
+        return settings;
     }
 }
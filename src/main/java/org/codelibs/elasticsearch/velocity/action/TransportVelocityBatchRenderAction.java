@@ -0,0 +1,116 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptMetadata;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.StoredScriptSource;
+import org.elasticsearch.script.TemplateScript;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportVelocityBatchRenderAction extends HandledTransportAction<VelocityBatchRenderRequest, VelocityBatchRenderResponse> {
+
+    /** Bounded pool rendering batches. */
+    public static final String THREAD_POOL_NAME = "velocity_render";
+
+    private final ScriptService scriptService;
+
+    private final ClusterService clusterService;
+
+    private final ThreadPool threadPool;
+
+    @Inject
+    public TransportVelocityBatchRenderAction(final TransportService transportService, final ActionFilters actionFilters,
+            final ScriptService scriptService, final ClusterService clusterService, final ThreadPool threadPool) {
+        super(VelocityBatchRenderAction.NAME, transportService, actionFilters, VelocityBatchRenderRequest::new);
+        this.scriptService = scriptService;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+    }
+
+    /**
+     * Rejects stored scripts of other languages, as this action only renders Velocity templates.
+     */
+    private void checkStoredScriptLang(final Script script) {
+        if (script.getType() != ScriptType.STORED) {
+            return;
+        }
+        final ScriptMetadata scriptMetadata = clusterService.state().metadata().custom(ScriptMetadata.TYPE);
+        final StoredScriptSource source = scriptMetadata != null ? scriptMetadata.getStoredScripts().get(script.getIdOrCode()) : null;
+        if (source != null && !VelocityScriptEngine.NAME.equals(source.getLang())) {
+            throw new IllegalArgumentException("stored script [" + script.getIdOrCode() + "] must be a [" + VelocityScriptEngine.NAME
+                    + "] script, but was [" + source.getLang() + "]");
+        }
+    }
+
+    @Override
+    protected void doExecute(final Task task, final VelocityBatchRenderRequest request,
+            final ActionListener<VelocityBatchRenderResponse> listener) {
+        final long startTime = System.nanoTime();
+        final TemplateScript.Factory factory;
+        try {
+            checkStoredScriptLang(request.getScript());
+            factory = scriptService.compile(request.getScript(), TemplateScript.CONTEXT);
+        } catch (final Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+
+        final List<Map<String, Object>> paramsList = request.getParams();
+        final String[] outputs = new String[paramsList.size()];
+        final ExecutorService executor = threadPool.executor(THREAD_POOL_NAME);
+        final int chunks = request.isParallel() ? Math.max(1, Math.min(threadPool.info(THREAD_POOL_NAME).getMax(), outputs.length)) : 1;
+        final CountDown countDown = new CountDown(chunks);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        for (int i = 0; i < chunks; i++) {
+            final int from = (int) ((long) outputs.length * i / chunks);
+            final int to = (int) ((long) outputs.length * (i + 1) / chunks);
+            executor.execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() {
+                    for (int j = from; j < to && failure.get() == null; j++) {
+                        outputs[j] = factory.newInstance(paramsList.get(j)).execute();
+                    }
+                    onDone();
+                }
+
+                @Override
+                public void onFailure(final Exception e) {
+                    if (!failure.compareAndSet(null, e)) {
+                        failure.get().addSuppressed(e);
+                    }
+                    onDone();
+                }
+
+                private void onDone() {
+                    if (countDown.countDown()) {
+                        final Exception e = failure.get();
+                        if (e != null) {
+                            listener.onFailure(e);
+                        } else {
+                            listener.onResponse(new VelocityBatchRenderResponse(
+                                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), Arrays.asList(outputs)));
+                        }
+                    }
+                }
+            });
+        }
+    }
+}
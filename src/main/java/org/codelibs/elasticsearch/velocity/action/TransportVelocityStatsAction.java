@@ -0,0 +1,49 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportVelocityStatsAction
+        extends TransportNodesAction<VelocityStatsRequest, VelocityStatsResponse, VelocityStatsNodeRequest, VelocityStatsNodeResponse> {
+
+    private final VelocityScriptEngine scriptEngine;
+
+    @Inject
+    public TransportVelocityStatsAction(final ThreadPool threadPool, final ClusterService clusterService,
+            final TransportService transportService, final ActionFilters actionFilters, final VelocityScriptEngine scriptEngine) {
+        super(VelocityStatsAction.NAME, threadPool, clusterService, transportService, actionFilters, VelocityStatsRequest::new,
+                VelocityStatsNodeRequest::new, ThreadPool.Names.MANAGEMENT, VelocityStatsNodeResponse.class);
+        this.scriptEngine = scriptEngine;
+    }
+
+    @Override
+    protected VelocityStatsResponse newResponse(final VelocityStatsRequest request, final List<VelocityStatsNodeResponse> responses,
+            final List<FailedNodeException> failures) {
+        return new VelocityStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected VelocityStatsNodeRequest newNodeRequest(final VelocityStatsRequest request) {
+        return new VelocityStatsNodeRequest();
+    }
+
+    @Override
+    protected VelocityStatsNodeResponse newNodeResponse(final StreamInput in) throws IOException {
+        return new VelocityStatsNodeResponse(in);
+    }
+
+    @Override
+    protected VelocityStatsNodeResponse nodeOperation(final VelocityStatsNodeRequest request) {
+        return new VelocityStatsNodeResponse(clusterService.localNode(), scriptEngine.stats());
+    }
+}
@@ -0,0 +1,14 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import org.elasticsearch.action.ActionType;
+
+public class VelocityBatchRenderAction extends ActionType<VelocityBatchRenderResponse> {
+
+    public static final VelocityBatchRenderAction INSTANCE = new VelocityBatchRenderAction();
+
+    public static final String NAME = "cluster:admin/velocity/render/batch";
+
+    private VelocityBatchRenderAction() {
+        super(NAME, VelocityBatchRenderResponse::new);
+    }
+}
@@ -0,0 +1,89 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+
+/**
+ * Renders one script with each of the params.
+ */
+public class VelocityBatchRenderRequest extends ActionRequest {
+
+    private Script script;
+
+    private List<Map<String, Object>> params;
+
+    private boolean parallel;
+
+    public VelocityBatchRenderRequest() {
+    }
+
+    public VelocityBatchRenderRequest(final StreamInput in) throws IOException {
+        super(in);
+        script = in.readOptionalWriteable(Script::new);
+        params = in.readList(StreamInput::readMap);
+        parallel = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalWriteable(script);
+        out.writeCollection(params, StreamOutput::writeMap);
+        out.writeBoolean(parallel);
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (script == null) {
+            validationException = addValidationError("script is missing", validationException);
+        } else if (script.getType() == ScriptType.INLINE && !VelocityScriptEngine.NAME.equals(script.getLang())) {
+            validationException = addValidationError("script lang must be [" + VelocityScriptEngine.NAME + "]", validationException);
+        }
+        if (params == null) {
+            validationException = addValidationError("params are missing", validationException);
+        }
+        return validationException;
+    }
+
+    public Script getScript() {
+        return script;
+    }
+
+    public VelocityBatchRenderRequest setScript(final Script script) {
+        this.script = script;
+        return this;
+    }
+
+    public List<Map<String, Object>> getParams() {
+        return params;
+    }
+
+    public VelocityBatchRenderRequest setParams(final List<Map<String, Object>> params) {
+        this.params = params;
+        return this;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel true to split the params across the threads of the render pool
+     */
+    public VelocityBatchRenderRequest setParallel(final boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+}
@@ -0,0 +1,59 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+public class VelocityBatchRenderResponse extends ActionResponse implements ToXContentObject {
+
+    private final long tookInMillis;
+
+    private final List<String> outputs;
+
+    public VelocityBatchRenderResponse(final StreamInput in) throws IOException {
+        super(in);
+        tookInMillis = in.readVLong();
+        outputs = in.readStringList();
+    }
+
+    /**
+     * @param tookInMillis the time to compile and render
+     * @param outputs the outputs in the order of the params
+     */
+    public VelocityBatchRenderResponse(final long tookInMillis, final List<String> outputs) {
+        this.tookInMillis = tookInMillis;
+        this.outputs = outputs;
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVLong(tookInMillis);
+        out.writeStringCollection(outputs);
+    }
+
+    public long getTookInMillis() {
+        return tookInMillis;
+    }
+
+    public List<String> getOutputs() {
+        return outputs;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject();
+        builder.field("took", tookInMillis);
+        builder.startArray("outputs");
+        for (final String output : outputs) {
+            builder.value(output);
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+}
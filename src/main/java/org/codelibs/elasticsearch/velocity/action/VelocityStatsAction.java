@@ -0,0 +1,14 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import org.elasticsearch.action.ActionType;
+
+public class VelocityStatsAction extends ActionType<VelocityStatsResponse> {
+
+    public static final VelocityStatsAction INSTANCE = new VelocityStatsAction();
+
+    public static final String NAME = "cluster:monitor/velocity/stats";
+
+    private VelocityStatsAction() {
+        super(NAME, VelocityStatsResponse::new);
+    }
+}
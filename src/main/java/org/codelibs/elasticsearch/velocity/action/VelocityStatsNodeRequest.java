@@ -0,0 +1,16 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.transport.TransportRequest;
+
+public class VelocityStatsNodeRequest extends TransportRequest {
+
+    public VelocityStatsNodeRequest() {
+    }
+
+    public VelocityStatsNodeRequest(final StreamInput in) throws IOException {
+        super(in);
+    }
+}
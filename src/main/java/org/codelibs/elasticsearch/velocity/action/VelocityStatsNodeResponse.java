@@ -0,0 +1,34 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.io.IOException;
+
+import org.codelibs.elasticsearch.velocity.stats.VelocityStats;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+public class VelocityStatsNodeResponse extends BaseNodeResponse {
+
+    private final VelocityStats stats;
+
+    public VelocityStatsNodeResponse(final StreamInput in) throws IOException {
+        super(in);
+        stats = new VelocityStats(in);
+    }
+
+    public VelocityStatsNodeResponse(final DiscoveryNode node, final VelocityStats stats) {
+        super(node);
+        this.stats = stats;
+    }
+
+    public VelocityStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        super.writeTo(out);
+        stats.writeTo(out);
+    }
+}
@@ -0,0 +1,17 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+
+public class VelocityStatsRequest extends BaseNodesRequest<VelocityStatsRequest> {
+
+    public VelocityStatsRequest(final StreamInput in) throws IOException {
+        super(in);
+    }
+
+    public VelocityStatsRequest(final String... nodesIds) {
+        super(nodesIds);
+    }
+}
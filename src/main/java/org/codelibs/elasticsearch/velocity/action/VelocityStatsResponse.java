@@ -0,0 +1,47 @@
+package org.codelibs.elasticsearch.velocity.action;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+public class VelocityStatsResponse extends BaseNodesResponse<VelocityStatsNodeResponse> implements ToXContentFragment {
+
+    public VelocityStatsResponse(final StreamInput in) throws IOException {
+        super(in);
+    }
+
+    public VelocityStatsResponse(final ClusterName clusterName, final List<VelocityStatsNodeResponse> nodes,
+            final List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<VelocityStatsNodeResponse> readNodesFrom(final StreamInput in) throws IOException {
+        return in.readList(VelocityStatsNodeResponse::new);
+    }
+
+    @Override
+    protected void writeNodesTo(final StreamOutput out, final List<VelocityStatsNodeResponse> nodes) throws IOException {
+        out.writeList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject("nodes");
+        for (final VelocityStatsNodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            node.getStats().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,107 @@
+package org.codelibs.elasticsearch.velocity.ingest;
+
+import static org.elasticsearch.ingest.ConfigurationUtils.newConfigurationException;
+import static org.elasticsearch.ingest.ConfigurationUtils.readBooleanProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readOptionalStringProperty;
+import static org.elasticsearch.ingest.ConfigurationUtils.readStringProperty;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.velocity.script.VelocityBytesScript;
+import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.script.TemplateScript;
+import org.elasticsearch.xcontent.XContentType;
+
+/**
+ * Renders a Velocity template with the fields of each document and writes the output into a field.
+ * The template is compiled once when the pipeline is created, and renders reuse the thread-local
+ * contexts and buffers of the engine, so a bulk request has no per-document setup.
+ */
+public class VelocityProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "velocity";
+
+    private final String targetField;
+
+    /** Factory for "string" output, or null. */
+    private final TemplateScript.Factory templateFactory;
+
+    /** Factory for "json" output, or null. */
+    private final VelocityBytesScript.Factory bytesFactory;
+
+    VelocityProcessor(final String tag, final String description, final String targetField,
+            final TemplateScript.Factory templateFactory, final VelocityBytesScript.Factory bytesFactory) {
+        super(tag, description);
+        this.targetField = targetField;
+        this.templateFactory = templateFactory;
+        this.bytesFactory = bytesFactory;
+    }
+
+    @Override
+    public IngestDocument execute(final IngestDocument document) {
+        final Map<String, Object> model = document.getSourceAndMetadata();
+        final Object value;
+        if (bytesFactory != null) {
+            value = XContentHelper.convertToMap(bytesFactory.newInstance(model).execute(), false, XContentType.JSON).v2();
+        } else {
+            value = templateFactory.newInstance(model).execute();
+        }
+        document.setFieldValue(targetField, value);
+        return document;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public String getTargetField() {
+        return targetField;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final ScriptService scriptService;
+
+        public Factory(final ScriptService scriptService) {
+            this.scriptService = scriptService;
+        }
+
+        @Override
+        public VelocityProcessor create(final Map<String, Processor.Factory> registry, final String processorTag,
+                final String description, final Map<String, Object> config) throws Exception {
+            final String source = readOptionalStringProperty(TYPE, processorTag, config, "source");
+            final String id = readOptionalStringProperty(TYPE, processorTag, config, "id");
+            final String targetField = readStringProperty(TYPE, processorTag, config, "target_field");
+            final boolean json = readBooleanProperty(TYPE, processorTag, config, "json", false);
+            if (source == null == (id == null)) {
+                throw newConfigurationException(TYPE, processorTag, null, "Only one of [source] or [id] must be specified");
+            }
+
+            final Script script;
+            if (source != null) {
+                script = new Script(ScriptType.INLINE, VelocityScriptEngine.NAME, source, Collections.emptyMap());
+            } else {
+                script = new Script(ScriptType.STORED, null, id, Collections.emptyMap());
+            }
+            try {
+                if (json) {
+                    return new VelocityProcessor(processorTag, description, targetField, null,
+                            scriptService.compile(script, VelocityBytesScript.CONTEXT));
+                }
+                return new VelocityProcessor(processorTag, description, targetField,
+                        scriptService.compile(script, TemplateScript.CONTEXT), null);
+            } catch (final Exception e) {
+                throw newConfigurationException(TYPE, processorTag, null, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.codelibs.elasticsearch.velocity.introspection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+import org.apache.velocity.util.introspection.Info;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.apache.velocity.util.introspection.VelMethod;
+import org.apache.velocity.util.introspection.VelPropertyGet;
+
+/**
+ * Uberspect resolving property access and common methods on the Map, List and
+ * String values of script params without reflection, and delegating anything
+ * else to the default introspection.
+ *
+ * Only classes whose results are the same as the default introspection are
+ * handled: maps without getter methods other than getClass(), and method
+ * arguments of the exact types the default method lookup would accept.
+ */
+public class FastUberspect extends UberspectImpl {
+
+    private static final Set<Class<?>> MAP_CLASSES = new HashSet<>(Arrays.asList(HashMap.class, LinkedHashMap.class,
+            TreeMap.class, Collections.emptyMap().getClass(), Collections.unmodifiableMap(new HashMap<>()).getClass()));
+
+    private static final Set<Class<?>> LIST_CLASSES = new HashSet<>(Arrays.asList(ArrayList.class, Arrays.asList().getClass(),
+            Collections.emptyList().getClass(), Collections.unmodifiableList(new ArrayList<>()).getClass()));
+
+    @Override
+    public VelPropertyGet getPropertyGet(final Object obj, final String identifier, final Info i) throws Exception {
+        // the default introspection resolves both $map.class and $map.Class to getClass()
+        if (obj != null && MAP_CLASSES.contains(obj.getClass()) && !"class".equals(identifier) && !"Class".equals(identifier)) {
+            return new MapPropertyGet(identifier);
+        }
+        return super.getPropertyGet(obj, identifier, i);
+    }
+
+    @Override
+    public VelMethod getMethod(final Object obj, final String methodName, final Object[] args, final Info i) throws Exception {
+        if (obj != null) {
+            final VelMethod method = getFastMethod(obj.getClass(), methodName, args);
+            if (method != null) {
+                return method;
+            }
+        }
+        return super.getMethod(obj, methodName, args, i);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static VelMethod getFastMethod(final Class<?> clazz, final String methodName, final Object[] args) {
+        final int argCount = args == null ? 0 : args.length;
+        if (MAP_CLASSES.contains(clazz)) {
+            if (argCount == 0) {
+                switch (methodName) {
+                case "size":
+                    return new FastMethod(methodName, Integer.TYPE, (o, p) -> ((Map<Object, Object>) o).size());
+                case "isEmpty":
+                    return new FastMethod(methodName, Boolean.TYPE, (o, p) -> ((Map<Object, Object>) o).isEmpty());
+                case "keySet":
+                    return new FastMethod(methodName, Set.class, (o, p) -> ((Map<Object, Object>) o).keySet());
+                case "values":
+                    return new FastMethod(methodName, Collection.class, (o, p) -> ((Map<Object, Object>) o).values());
+                case "entrySet":
+                    return new FastMethod(methodName, Set.class, (o, p) -> ((Map<Object, Object>) o).entrySet());
+                default:
+                    return null;
+                }
+            } else if (argCount == 1) {
+                switch (methodName) {
+                case "get":
+                    return new FastMethod(methodName, Object.class, (o, p) -> ((Map<Object, Object>) o).get(p[0]));
+                case "containsKey":
+                    return new FastMethod(methodName, Boolean.TYPE, (o, p) -> ((Map<Object, Object>) o).containsKey(p[0]));
+                default:
+                    return null;
+                }
+            }
+        } else if (LIST_CLASSES.contains(clazz)) {
+            if (argCount == 0) {
+                switch (methodName) {
+                case "size":
+                    return new FastMethod(methodName, Integer.TYPE, (o, p) -> ((List<Object>) o).size());
+                case "isEmpty":
+                    return new FastMethod(methodName, Boolean.TYPE, (o, p) -> ((List<Object>) o).isEmpty());
+                default:
+                    return null;
+                }
+            } else if (argCount == 1) {
+                switch (methodName) {
+                case "get":
+                    return args[0] instanceof Integer
+                            ? new FastMethod(methodName, Object.class, (o, p) -> ((List<Object>) o).get((Integer) p[0]))
+                            : null;
+                case "contains":
+                    return new FastMethod(methodName, Boolean.TYPE, (o, p) -> ((List<Object>) o).contains(p[0]));
+                default:
+                    return null;
+                }
+            }
+        } else if (clazz == String.class && argCount == 0) {
+            switch (methodName) {
+            case "length":
+                return new FastMethod(methodName, Integer.TYPE, (o, p) -> ((String) o).length());
+            case "isEmpty":
+                return new FastMethod(methodName, Boolean.TYPE, (o, p) -> ((String) o).isEmpty());
+            case "trim":
+                return new FastMethod(methodName, String.class, (o, p) -> ((String) o).trim());
+            case "toLowerCase":
+                return new FastMethod(methodName, String.class, (o, p) -> ((String) o).toLowerCase());
+            case "toUpperCase":
+                return new FastMethod(methodName, String.class, (o, p) -> ((String) o).toUpperCase());
+            default:
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * $map.key as map.get("key").
+     */
+    private static class MapPropertyGet implements VelPropertyGet {
+        private final String key;
+
+        MapPropertyGet(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object invoke(final Object o) {
+            return ((Map<?, ?>) o).get(key);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+
+        @Override
+        public String getMethodName() {
+            return "get";
+        }
+    }
+
+    private static class FastMethod implements VelMethod {
+        private final String methodName;
+
+        private final Class<?> returnType;
+
+        private final BiFunction<Object, Object[], Object> function;
+
+        FastMethod(final String methodName, final Class<?> returnType, final BiFunction<Object, Object[], Object> function) {
+            this.methodName = methodName;
+            this.returnType = returnType;
+            this.function = function;
+        }
+
+        @Override
+        public Object invoke(final Object o, final Object[] params) {
+            return function.apply(o, params);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return true;
+        }
+
+        @Override
+        public String getMethodName() {
+            return methodName;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Class getReturnType() {
+            return returnType;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package org.codelibs.elasticsearch.velocity.resource;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.ResourceCache;
+
+/**
+ * ResourceCache with lock-free reads, replacing the synchronized LRU map of
+ * Velocity's ResourceCacheImpl. The size is bounded by
+ * "resource.manager.defaultcache.size" (unbounded if it is not positive), and
+ * entries not read since the last eviction scan are evicted first (CLOCK).
+ */
+public class ConcurrentResourceCache implements ResourceCache {
+
+    private final Map<Object, Entry> cache = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private int maxSize;
+
+    @Override
+    public void initialize(final RuntimeServices rs) {
+        maxSize = rs.getInt(RuntimeConstants.RESOURCE_MANAGER_DEFAULTCACHE_SIZE, 89);
+        // lets VelocityScriptEngine replace templates changed on disk
+        rs.setApplicationAttribute(ConcurrentResourceCache.class.getName(), this);
+    }
+
+    @Override
+    public Resource get(final Object resourceKey) {
+        final Entry entry = cache.get(resourceKey);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.resource;
+    }
+
+    @Override
+    public Resource put(final Object resourceKey, final Resource value) {
+        final Entry old = cache.put(resourceKey, new Entry(value));
+        if (old != null) {
+            return old.resource;
+        }
+        if (maxSize > 0 && size.incrementAndGet() > maxSize) {
+            evict(resourceKey);
+        } else if (maxSize <= 0) {
+            size.incrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Removes one entry not referenced since the last scan, clearing the
+     * reference bits of the entries it passes.
+     */
+    private void evict(final Object addedKey) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (final Map.Entry<Object, Entry> e : cache.entrySet()) {
+                if (e.getKey().equals(addedKey)) {
+                    continue;
+                }
+                final Entry entry = e.getValue();
+                if (entry.referenced) {
+                    entry.referenced = false;
+                } else if (cache.remove(e.getKey(), entry)) {
+                    size.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Resource remove(final Object resourceKey) {
+        final Entry entry = cache.remove(resourceKey);
+        if (entry == null) {
+            return null;
+        }
+        size.decrementAndGet();
+        return entry.resource;
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Iterator enumerateKeys() {
+        return cache.keySet().iterator();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    private static class Entry {
+        private final Resource resource;
+
+        /** Set on reads, cleared by eviction scans. */
+        private volatile boolean referenced;
+
+        Entry(final Resource resource) {
+            this.resource = resource;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.codelibs.elasticsearch.velocity.resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.collections.ExtendedProperties;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.resource.Resource;
+import org.apache.velocity.runtime.resource.loader.ResourceLoader;
+
+/**
+ * ResourceLoader serving template sources kept on heap, keyed by template id.
+ */
+public class MemoryResourceLoader extends ResourceLoader {
+
+    private final Map<String, TemplateSource> sourceMap = new ConcurrentHashMap<>();
+
+    @Override
+    public void init(final ExtendedProperties configuration) {
+        // nothing
+    }
+
+    /**
+     * @return the stored entry, for {@link #removeSource(String, Object)}
+     */
+    public Object putSource(final String name, final String source) {
+        final TemplateSource templateSource = new TemplateSource(source);
+        sourceMap.put(name, templateSource);
+        return templateSource;
+    }
+
+    public boolean removeSource(final String name) {
+        return sourceMap.remove(name) != null;
+    }
+
+    /**
+     * Removes the source unless it has been put again since the entry was stored.
+     */
+    public boolean removeSource(final String name, final Object entry) {
+        return sourceMap.remove(name, entry);
+    }
+
+    public int size() {
+        return sourceMap.size();
+    }
+
+    @Override
+    public InputStream getResourceStream(final String name) throws ResourceNotFoundException {
+        final TemplateSource templateSource = sourceMap.get(name);
+        if (templateSource == null) {
+            throw new ResourceNotFoundException("MemoryResourceLoader: cannot find " + name);
+        }
+        final String encoding = rsvc.getString(RuntimeConstants.INPUT_ENCODING, RuntimeConstants.ENCODING_DEFAULT);
+        try {
+            return new ByteArrayInputStream(templateSource.source.getBytes(encoding));
+        } catch (final UnsupportedEncodingException e) {
+            throw new VelocityException("Unsupported encoding: " + encoding, e);
+        }
+    }
+
+    @Override
+    public boolean resourceExists(final String name) {
+        return sourceMap.containsKey(name);
+    }
+
+    @Override
+    public boolean isSourceModified(final Resource resource) {
+        final TemplateSource templateSource = sourceMap.get(resource.getName());
+        return templateSource == null || templateSource.lastModified != resource.getLastModified();
+    }
+
+    @Override
+    public long getLastModified(final Resource resource) {
+        final TemplateSource templateSource = sourceMap.get(resource.getName());
+        return templateSource == null ? 0L : templateSource.lastModified;
+    }
+
+    private static class TemplateSource {
+        private final String source;
+
+        private final long lastModified;
+
+        TemplateSource(final String source) {
+            this.source = source;
+            this.lastModified = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.codelibs.elasticsearch.velocity.rest;
+
+import static java.util.Collections.singletonList;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.velocity.action.VelocityBatchRenderAction;
+import org.codelibs.elasticsearch.velocity.action.VelocityBatchRenderRequest;
+import org.codelibs.elasticsearch.velocity.script.VelocityScriptEngine;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.xcontent.XContentParser;
+
+/**
+ * Renders one script with each of the params:
+ * <pre>
+ * POST /_velocity/_render/_batch
+ * {"source": "...", "params": [{...}, {...}], "parallel": true}
+ * </pre>
+ */
+public class RestVelocityBatchRenderAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "velocity_batch_render_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return singletonList(new Route(POST, "/_velocity/_render/_batch"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) throws IOException {
+        final Map<String, Object> body;
+        try (XContentParser parser = request.contentParser()) {
+            body = parser.map();
+        }
+        final String source = (String) body.get("source");
+        final String id = (String) body.get("id");
+        if (source == null == (id == null)) {
+            throw new IllegalArgumentException("Only one of [source] or [id] must be specified");
+        }
+        final Script script;
+        if (source != null) {
+            final Object lang = body.getOrDefault("lang", VelocityScriptEngine.NAME);
+            if (!VelocityScriptEngine.NAME.equals(lang)) {
+                throw new IllegalArgumentException("[lang] must be [" + VelocityScriptEngine.NAME + "], but was [" + lang + "]");
+            }
+            script = new Script(ScriptType.INLINE, VelocityScriptEngine.NAME, source, Collections.emptyMap());
+        } else {
+            script = new Script(ScriptType.STORED, null, id, Collections.emptyMap());
+        }
+        final Object params = body.get("params");
+        if (!(params instanceof List)) {
+            throw new IllegalArgumentException("[params] must be an array of objects");
+        }
+        final List<Map<String, Object>> paramsList = new ArrayList<>();
+        for (final Object value : (List<Object>) params) {
+            if (!(value instanceof Map)) {
+                throw new IllegalArgumentException("[params] must be an array of objects");
+            }
+            paramsList.add((Map<String, Object>) value);
+        }
+        final Object parallel = body.get("parallel");
+
+        final VelocityBatchRenderRequest renderRequest = new VelocityBatchRenderRequest().setScript(script).setParams(paramsList)
+                .setParallel(request.paramAsBoolean("parallel", Boolean.TRUE.equals(parallel)));
+        return channel -> client.execute(VelocityBatchRenderAction.INSTANCE, renderRequest, new RestToXContentListener<>(channel));
+    }
+}
@@ -0,0 +1,36 @@
+package org.codelibs.elasticsearch.velocity.rest;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import java.util.List;
+
+import org.codelibs.elasticsearch.velocity.action.VelocityStatsAction;
+import org.codelibs.elasticsearch.velocity.action.VelocityStatsRequest;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions.NodesResponseRestListener;
+
+public class RestVelocityStatsAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "velocity_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return unmodifiableList(asList(new Route(GET, "/_nodes/velocity/stats"), new Route(GET, "/_nodes/{nodeId}/velocity/stats")));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(final RestRequest request, final NodeClient client) {
+        final String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
+        final VelocityStatsRequest statsRequest = new VelocityStatsRequest(nodesIds);
+        statsRequest.timeout(request.param("timeout"));
+        return channel -> client.execute(VelocityStatsAction.INSTANCE, statsRequest, new NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,138 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.context.Context;
+
+/**
+ * Velocity context looking up keys through layers without copying them.
+ * Values put by a template (#set, #foreach) go to a per-render scratch layer
+ * which shadows the script parameters, and the parameters shadow the
+ * context properties. The read-only layers are never modified.
+ */
+public class LayeredContext implements Context {
+
+    /** Scratch maps larger than this are not kept by a thread after a render. */
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 256;
+
+    private static final ThreadLocal<LayeredContext> LOCAL_CONTEXT = ThreadLocal.withInitial(LayeredContext::new);
+
+    private Map<String, Object> params = Collections.emptyMap();
+
+    private Map<String, Object> contextProps = Collections.emptyMap();
+
+    private Map<String, Object> scratch;
+
+    private RenderBudget budget;
+
+    private boolean inUse;
+
+    /**
+     * Returns the context of the current thread, or a new one if it is already in use.
+     *
+     * @param params the script parameters
+     * @param contextProps the node-level context properties
+     * @return the context
+     */
+    public static LayeredContext acquire(final Map<String, Object> params, final Map<String, Object> contextProps) {
+        LayeredContext context = LOCAL_CONTEXT.get();
+        if (context.inUse) {
+            context = new LayeredContext();
+        }
+        context.params = params == null ? Collections.emptyMap() : params;
+        context.contextProps = contextProps == null ? Collections.emptyMap() : contextProps;
+        context.inUse = true;
+        return context;
+    }
+
+    /**
+     * @param budget the limits checked on each lookup and assignment, or null
+     */
+    public void setBudget(final RenderBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Clears the render state and gives the context back to the current thread.
+     */
+    public void release() {
+        budget = null;
+        params = Collections.emptyMap();
+        contextProps = Collections.emptyMap();
+        if (scratch != null) {
+            if (scratch.size() > MAX_RETAINED_SCRATCH_SIZE) {
+                scratch = null;
+            } else {
+                scratch.clear();
+            }
+        }
+        inUse = false;
+    }
+
+    @Override
+    public Object put(final String key, final Object value) {
+        if (key == null) {
+            return null;
+        }
+        if (budget != null) {
+            budget.onVisit();
+        }
+        if (scratch == null) {
+            scratch = new HashMap<>();
+        }
+        return scratch.put(key, value);
+    }
+
+    @Override
+    public Object get(final String key) {
+        if (key == null) {
+            return null;
+        }
+        if (budget != null) {
+            budget.onVisit();
+        }
+        if (scratch != null && !scratch.isEmpty()) {
+            final Object value = scratch.get(key);
+            if (value != null || scratch.containsKey(key)) {
+                return value;
+            }
+        }
+        // a param with a null value shadows the context properties too
+        final Object value = params.get(key);
+        if (value != null || params.containsKey(key)) {
+            return value;
+        }
+        return contextProps.get(key);
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        if (key == null) {
+            return false;
+        }
+        return (scratch != null && scratch.containsKey(key)) || params.containsKey(key) || contextProps.containsKey(key);
+    }
+
+    @Override
+    public Object[] getKeys() {
+        final Set<Object> keys = new LinkedHashSet<>();
+        if (scratch != null) {
+            keys.addAll(scratch.keySet());
+        }
+        keys.addAll(params.keySet());
+        keys.addAll(contextProps.keySet());
+        return keys.toArray();
+    }
+
+    @Override
+    public Object remove(final Object key) {
+        if (key == null || scratch == null) {
+            return null;
+        }
+        return scratch.remove(key);
+    }
+}
@@ -0,0 +1,461 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.runtime.Renderable;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTFalse;
+import org.apache.velocity.runtime.parser.node.ASTFloatingPointLiteral;
+import org.apache.velocity.runtime.parser.node.ASTIntegerLiteral;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTSetDirective;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
+import org.apache.velocity.runtime.parser.node.ASTTrue;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+
+/**
+ * Expands calls of velocimacros defined in the macro libraries into the calling
+ * template, so that renders do not look up the macro and proxy its arguments for
+ * each call. A reference to a macro argument in the body is replaced by a node
+ * evaluating the node passed by the call, which keeps the call-by-name semantics
+ * of Velocity.
+ *
+ * Calls are left as they are unless the expansion renders the same: recursive
+ * macros, bodies assigning or dereferencing an argument, bodies using #break,
+ * #stop, $bodyContent or interpolated strings, and macros also defined in the
+ * calling template are not expanded.
+ */
+public class MacroInliner {
+
+    private static final Logger logger = LogManager.getLogger(MacroInliner.class);
+
+    /** Directives whose bodies are not rendered in place. */
+    private static final Set<String> OPAQUE_DIRECTIVES = new HashSet<>(Arrays.asList("macro", "literal"));
+
+    /** Directives which behave differently in a macro body. */
+    private static final Set<String> MACRO_SCOPED_DIRECTIVES = new HashSet<>(Arrays.asList("macro", "break", "stop"));
+
+    /** References which behave differently in a macro body. */
+    private static final Set<String> MACRO_SCOPED_REFERENCES = new HashSet<>(Arrays.asList("macro", "bodyContent"));
+
+    private final RuntimeInstance runtimeInstance;
+
+    private final Map<String, Macro> macros;
+
+    private final int maxDepth;
+
+    private MacroInliner(final RuntimeInstance runtimeInstance, final Map<String, Macro> macros) {
+        this.runtimeInstance = runtimeInstance;
+        this.macros = macros;
+        maxDepth = runtimeInstance.getInt(RuntimeConstants.VM_MAX_DEPTH, 20);
+    }
+
+    /**
+     * Reads the macros of the libraries loaded by the initialized runtime.
+     *
+     * @param runtimeInstance the runtime
+     * @return the inliner, or null if no macro can be inlined
+     */
+    public static MacroInliner load(final RuntimeInstance runtimeInstance) {
+        if (runtimeInstance.getBoolean(RuntimeConstants.VM_CONTEXT_LOCALSCOPE, false)) {
+            logger.warn("Macros are not inlined because {} is enabled.", RuntimeConstants.VM_CONTEXT_LOCALSCOPE);
+            return null;
+        }
+        final Map<String, Macro> macros = new HashMap<>();
+        final String[] libraries = runtimeInstance.getConfiguration().getStringArray(RuntimeConstants.VM_LIBRARY);
+        for (final String library : libraries) {
+            if (library.isEmpty() || runtimeInstance.getLoaderNameForResource(library) == null) {
+                continue;
+            }
+            try {
+                collectMacros((Node) runtimeInstance.getTemplate(library).getData(), macros);
+            } catch (final Exception e) {
+                logger.warn("Failed to read macros in " + library, e);
+            }
+        }
+        if (macros.isEmpty()) {
+            return null;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Loaded macros {} to inline", macros.keySet());
+        }
+        return new MacroInliner(runtimeInstance, macros);
+    }
+
+    private static void collectMacros(final Node node, final Map<String, Macro> macros) {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            if (child instanceof ASTDirective && "macro".equals(((ASTDirective) child).getDirectiveName())) {
+                final Macro macro = Macro.of(child);
+                if (macro != null) {
+                    macros.putIfAbsent(macro.name, macro);
+                }
+            } else {
+                collectMacros(child, macros);
+            }
+        }
+    }
+
+    /**
+     * Expands library macro calls in the initialized template.
+     *
+     * @param template the template, which is modified
+     * @return the number of expanded calls
+     */
+    public int inline(final Template template) {
+        final Map<String, Macro> localMacros = new HashMap<>();
+        collectMacros((Node) template.getData(), localMacros);
+        final int count = inlineCalls(template, (Node) template.getData(), localMacros.keySet());
+        if (count > 0 && logger.isDebugEnabled()) {
+            logger.debug("Inlined {} macro calls in {}", count, template.getName());
+        }
+        return count;
+    }
+
+    /**
+     * Replaces calls in the initialized tree by initialized expansions, leaving
+     * calls which cannot be expanded.
+     */
+    private int inlineCalls(final Template template, final Node node, final Set<String> localMacros) {
+        int count = 0;
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            final Macro macro = getCalledMacro(child, localMacros);
+            if (macro != null) {
+                final SimpleNode fragment = expand(template.getName(), macro, child, localMacros, new ArrayDeque<>());
+                if (fragment != null && initFragment(template, fragment)) {
+                    fragment.jjtSetParent(node);
+                    node.jjtAddChild(fragment, i);
+                    count++;
+                }
+            } else if (!isOpaque(child)) {
+                count += inlineCalls(template, child, localMacros);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Replaces calls in the uninitialized tree of a macro body.
+     *
+     * @return false if a call cannot be expanded
+     */
+    private boolean inlineNestedCalls(final String templateName, final Node node, final Set<String> localMacros,
+            final Deque<String> stack) {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            final Macro macro = getCalledMacro(child, localMacros);
+            if (macro != null) {
+                final SimpleNode fragment = expand(templateName, macro, child, localMacros, stack);
+                if (fragment == null) {
+                    return false;
+                }
+                fragment.jjtSetParent(node);
+                node.jjtAddChild(fragment, i);
+            } else if (!isOpaque(child) && !inlineNestedCalls(templateName, child, localMacros, stack)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the uninitialized macro body with the arguments of the call bound, or null
+     */
+    private SimpleNode expand(final String templateName, final Macro macro, final Node call, final Set<String> localMacros,
+            final Deque<String> stack) {
+        if (stack.contains(macro.name) || stack.size() >= maxDepth) {
+            return null;
+        }
+        final Map<String, Argument> arguments = new HashMap<>();
+        for (int i = 0; i < macro.argNames.length; i++) {
+            final Node arg = call.jjtGetChild(i);
+            if (arg instanceof ArgumentNode) {
+                arguments.put(macro.argNames[i], ((ArgumentNode) arg).argument);
+            } else if (isBindable(arg)) {
+                arguments.put(macro.argNames[i], new Argument(arg));
+            } else {
+                return null;
+            }
+        }
+
+        final SimpleNode fragment;
+        try {
+            fragment = runtimeInstance.parse(new StringReader(macro.body), templateName, false);
+        } catch (final ParseException e) {
+            logger.debug("Could not parse the body of " + macro.name, e);
+            return null;
+        }
+        stack.push(macro.name);
+        try {
+            if (!bindArguments(fragment, arguments, localMacros) || !inlineNestedCalls(templateName, fragment, localMacros, stack)) {
+                return null;
+            }
+        } finally {
+            stack.pop();
+        }
+        return fragment;
+    }
+
+    /**
+     * Replaces references to the arguments by argument nodes.
+     *
+     * @return false if the body uses the arguments or macro features in a way which needs the macro
+     */
+    private boolean bindArguments(final Node node, final Map<String, Argument> arguments, final Set<String> localMacros) {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            if (child instanceof ASTReference) {
+                final String literal = child.literal();
+                final String name = getReferenceName(literal);
+                if (MACRO_SCOPED_REFERENCES.contains(name)) {
+                    return false;
+                }
+                final Argument argument = arguments.get(name);
+                if (argument != null) {
+                    if (child.jjtGetNumChildren() > 0 || literal.startsWith("\\") || !isBindablePosition(node, i, localMacros)) {
+                        return false;
+                    }
+                    final ArgumentNode argumentNode = new ArgumentNode(argument, literal);
+                    argumentNode.jjtSetParent(node);
+                    node.jjtAddChild(argumentNode, i);
+                    continue;
+                }
+            } else if (child instanceof ASTDirective && MACRO_SCOPED_DIRECTIVES.contains(((ASTDirective) child).getDirectiveName())) {
+                return false;
+            } else if (child instanceof ASTStringLiteral && child.literal().startsWith("\"") && child.literal().indexOf('$') != -1) {
+                return false;
+            }
+            if (!bindArguments(child, arguments, localMacros)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true unless the child is assigned or passed to a directive which needs a reference
+     */
+    private boolean isBindablePosition(final Node parent, final int index, final Set<String> localMacros) {
+        if (parent instanceof ASTSetDirective) {
+            return index != 0;
+        } else if (parent instanceof ASTDirective) {
+            final String directiveName = ((ASTDirective) parent).getDirectiveName();
+            if ("foreach".equals(directiveName)) {
+                return index == 2;
+            }
+            // a nested macro call, which fails the expansion if it cannot be inlined
+            return getCalledMacro(parent, localMacros) != null;
+        }
+        return true;
+    }
+
+    private Macro getCalledMacro(final Node node, final Set<String> localMacros) {
+        if (!(node instanceof ASTDirective)) {
+            return null;
+        }
+        final String name = ((ASTDirective) node).getDirectiveName();
+        final Macro macro = macros.get(name);
+        if (macro == null || localMacros.contains(name) || node.jjtGetNumChildren() != macro.argNames.length) {
+            return null;
+        }
+        return macro;
+    }
+
+    private boolean initFragment(final Template template, final SimpleNode fragment) {
+        final InternalContextAdapterImpl context = new InternalContextAdapterImpl(new VelocityContext());
+        context.pushCurrentTemplateName(template.getName());
+        context.setCurrentResource(template);
+        try {
+            fragment.init(context, runtimeInstance);
+            return true;
+        } catch (final RuntimeException e) {
+            logger.debug("Could not initialize an inlined macro in " + template.getName(), e);
+            return false;
+        } finally {
+            context.popCurrentTemplateName();
+            context.setCurrentResource(null);
+        }
+    }
+
+    private static boolean isOpaque(final Node node) {
+        return node instanceof ASTDirective && OPAQUE_DIRECTIVES.contains(((ASTDirective) node).getDirectiveName());
+    }
+
+    /**
+     * @return true if the call argument can be evaluated in place of a reference
+     */
+    private static boolean isBindable(final Node node) {
+        return node instanceof ASTReference || node instanceof ASTStringLiteral || node instanceof ASTIntegerLiteral
+                || node instanceof ASTFloatingPointLiteral || node instanceof ASTTrue || node instanceof ASTFalse;
+    }
+
+    /**
+     * @return the root name of a reference literal such as $!{name}
+     */
+    static String getReferenceName(final String literal) {
+        int start = 0;
+        while (start < literal.length() && "\\$!{".indexOf(literal.charAt(start)) != -1) {
+            start++;
+        }
+        int end = start;
+        while (end < literal.length()) {
+            final char c = literal.charAt(end);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                break;
+            }
+            end++;
+        }
+        return literal.substring(start, end);
+    }
+
+    /**
+     * A macro definition of a library.
+     */
+    private static class Macro {
+        private final String name;
+
+        private final String[] argNames;
+
+        /** The body source, parsed again for each expansion. */
+        private final String body;
+
+        Macro(final String name, final String[] argNames, final String body) {
+            this.name = name;
+            this.argNames = argNames;
+            this.body = body;
+        }
+
+        /**
+         * @param node the #macro directive, with the name, the arguments and the body block as children
+         */
+        static Macro of(final Node node) {
+            final int numChildren = node.jjtGetNumChildren();
+            if (numChildren < 2) {
+                return null;
+            }
+            final String name = node.jjtGetChild(0).literal().trim();
+            final String[] argNames = new String[numChildren - 2];
+            for (int i = 0; i < argNames.length; i++) {
+                final Node arg = node.jjtGetChild(i + 1);
+                if (!(arg instanceof ASTReference)) {
+                    return null;
+                }
+                argNames[i] = getReferenceName(arg.literal());
+            }
+            final Node block = node.jjtGetChild(numChildren - 1);
+            return new Macro(name, argNames, block.jjtGetNumChildren() == 0 ? "" : block.literal());
+        }
+    }
+
+    /**
+     * A node passed to a macro call, shared by the argument nodes bound to it.
+     */
+    private static class Argument {
+        private final Node node;
+
+        private boolean initialized;
+
+        Argument(final Node node) {
+            this.node = node;
+        }
+
+        void init(final InternalContextAdapter context, final Object data) {
+            if (!initialized) {
+                node.init(context, data);
+                initialized = true;
+            }
+        }
+    }
+
+    /**
+     * Evaluates a call argument in place of a reference to the macro argument.
+     */
+    static class ArgumentNode extends SimpleNode {
+        private final Argument argument;
+
+        /** The replaced reference, rendered if the value is null. */
+        private final String literal;
+
+        private final boolean quiet;
+
+        ArgumentNode(final Argument argument, final String literal) {
+            super(ParserTreeConstants.JJTEXPRESSION);
+            this.argument = argument;
+            this.literal = literal;
+            quiet = literal.startsWith("$!");
+        }
+
+        /**
+         * @return the node passed by the call
+         */
+        Node getArgument() {
+            return argument.node;
+        }
+
+        @Override
+        public Object init(final InternalContextAdapter context, final Object data) {
+            argument.init(context, data);
+            return data;
+        }
+
+        @Override
+        public String literal() {
+            return literal;
+        }
+
+        @Override
+        public Object value(final InternalContextAdapter context) {
+            return argument.node.value(context);
+        }
+
+        @Override
+        public Object execute(final Object o, final InternalContextAdapter context) {
+            return value(context);
+        }
+
+        @Override
+        public boolean evaluate(final InternalContextAdapter context) {
+            final Object value = value(context);
+            if (value instanceof Boolean) {
+                return ((Boolean) value).booleanValue();
+            }
+            return value != null;
+        }
+
+        @Override
+        public boolean render(final InternalContextAdapter context, final Writer writer) throws IOException {
+            final Object value = value(context);
+            if (value instanceof Renderable) {
+                return ((Renderable) value).render(context, writer);
+            }
+            final String text = value != null ? value.toString() : null;
+            if (text != null) {
+                writer.write(text);
+            } else if (!quiet) {
+                writer.write(literal);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codelibs.elasticsearch.velocity.util.ContextProperties;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.core.TimeValue;
+
+/**
+ * Rendered outputs of "##memo" templates, keyed by the template, the params and
+ * the versions of the context properties the template depends on.
+ */
+public class OutputCache {
+
+    public static final String MEMO_HEADER = "##memo";
+
+    private volatile Cache<Key, String> cache;
+
+    public OutputCache(final int maxSize, final TimeValue expire) {
+        cache = buildCache(maxSize, expire);
+    }
+
+    /**
+     * @return true if one of the leading "##" lines of the source is "##memo"
+     */
+    public static boolean isMemoizable(final String source) {
+        int start = 0;
+        while (source.startsWith("##", start)) {
+            int end = source.indexOf('\n', start);
+            if (end == -1) {
+                end = source.length();
+            }
+            if (source.substring(start, end).trim().equals(MEMO_HEADER)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    public void setLimits(final int maxSize, final TimeValue expire) {
+        final Cache<Key, String> oldCache = cache;
+        cache = buildCache(maxSize, expire);
+        oldCache.invalidateAll();
+    }
+
+    private static Cache<Key, String> buildCache(final int maxSize, final TimeValue expire) {
+        final CacheBuilder<Key, String> cacheBuilder = CacheBuilder.builder();
+        cacheBuilder.setMaximumWeight(maxSize);
+        if (expire.getNanos() != 0) {
+            cacheBuilder.setExpireAfterWrite(expire);
+        }
+        return cacheBuilder.build();
+    }
+
+    public String get(final Key key) {
+        return cache.get(key);
+    }
+
+    public void put(final Key key, final String output) {
+        cache.put(key.copy(), output);
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public static Key newKey(final Object template, final Map<String, Object> params, final ContextProperties[] dependencies) {
+        long version = 0;
+        for (final ContextProperties properties : dependencies) {
+            version = version * 31 + properties.getReloadCount();
+        }
+        return new Key(template, params, version);
+    }
+
+    public static class Key {
+        private final Object template;
+
+        private final Map<String, Object> params;
+
+        private final long version;
+
+        private final int hashCode;
+
+        Key(final Object template, final Map<String, Object> params, final long version) {
+            this.template = template;
+            this.params = params;
+            this.version = version;
+            this.hashCode = 31 * (31 * System.identityHashCode(template) + params.hashCode()) + Long.hashCode(version);
+        }
+
+        /**
+         * @return the key with a copy of the params, so that the cached key does not change with the caller's map
+         */
+        @SuppressWarnings("unchecked")
+        Key copy() {
+            return new Key(template, (Map<String, Object>) deepCopy(params), version);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return template == other.template && version == other.version && hashCode == other.hashCode
+                    && params.equals(other.params);
+        }
+
+        private static Object deepCopy(final Object value) {
+            if (value instanceof Map) {
+                final Map<Object, Object> map = new HashMap<>();
+                for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    map.put(entry.getKey(), deepCopy(entry.getValue()));
+                }
+                return map;
+            } else if (value instanceof List) {
+                final List<Object> list = new ArrayList<>();
+                for (final Object element : (List<?>) value) {
+                    list.add(deepCopy(element));
+                }
+                return list;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Limits of one render: wall-clock time, context visits (reference lookups and
+ * assignments) and output size. It wraps the writer only when an output size
+ * or time limit is set, and is set to the context only when a visit or time
+ * limit is set.
+ */
+public class RenderBudget extends Writer {
+
+    /** Writes of at least this many chars check the render time. */
+    private static final int TIME_CHECK_LENGTH = 16 * 1024;
+
+    /** The clock is read once per this many visits. */
+    private static final int TIME_CHECK_MASK = 0xFF;
+
+    private final Writer out;
+
+    private final long deadline;
+
+    private final long maxVisits;
+
+    private final long maxOutput;
+
+    private long visits;
+
+    /** Output size in UTF-8 bytes. */
+    private long written;
+
+    /**
+     * @param out the writer to write the output into
+     * @param maxTimeNanos the max render time, or 0
+     * @param maxVisits the max number of context visits, or 0
+     * @param maxOutput the max output size in UTF-8 bytes, or 0
+     */
+    public RenderBudget(final Writer out, final long maxTimeNanos, final long maxVisits, final long maxOutput) {
+        this.out = out;
+        this.deadline = maxTimeNanos > 0 ? System.nanoTime() + maxTimeNanos : 0;
+        this.maxVisits = maxVisits;
+        this.maxOutput = maxOutput;
+    }
+
+    /**
+     * @return true if the output size or the render time is limited, so the writer needs to be wrapped
+     */
+    public boolean checksOutput() {
+        return maxOutput > 0 || deadline != 0;
+    }
+
+    /**
+     * @return true if the visits or the render time is limited, so the context needs to count visits
+     */
+    public boolean checksVisits() {
+        return maxVisits > 0 || deadline != 0;
+    }
+
+    /**
+     * Called by the context for each lookup or assignment.
+     */
+    public void onVisit() {
+        visits++;
+        if (maxVisits > 0 && visits > maxVisits) {
+            throw new ElasticsearchException("Template exceeded the max visits: " + maxVisits);
+        }
+        if (deadline != 0 && (visits & TIME_CHECK_MASK) == 0) {
+            checkTime();
+        }
+    }
+
+    private void checkTime() {
+        if (System.nanoTime() - deadline > 0) {
+            throw new ElasticsearchException("Template exceeded the max render time.");
+        }
+    }
+
+    private void onWrite(final long bytes, final int len) {
+        written += bytes;
+        if (maxOutput > 0 && written > maxOutput) {
+            throw new ElasticsearchException("Template exceeded the max output size: " + maxOutput + " bytes");
+        }
+        if (deadline != 0 && len >= TIME_CHECK_LENGTH) {
+            checkTime();
+        }
+    }
+
+    /**
+     * @return the UTF-8 length of the char, counting each half of a surrogate pair as 2 bytes
+     */
+    private static int utf8Length(final char c) {
+        if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800 || Character.isSurrogate(c)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    @Override
+    public void write(final int c) throws IOException {
+        onWrite(maxOutput > 0 ? utf8Length((char) c) : 1, 1);
+        out.write(c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) throws IOException {
+        long bytes = len;
+        if (maxOutput > 0) {
+            bytes = 0;
+            for (int i = off; i < off + len; i++) {
+                bytes += utf8Length(cbuf[i]);
+            }
+        }
+        onWrite(bytes, len);
+        out.write(cbuf, off, len);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) throws IOException {
+        long bytes = len;
+        if (maxOutput > 0) {
+            bytes = 0;
+            for (int i = off; i < off + len; i++) {
+                bytes += utf8Length(str.charAt(i));
+            }
+        }
+        onWrite(bytes, len);
+        out.write(str, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        // nothing
+    }
+}
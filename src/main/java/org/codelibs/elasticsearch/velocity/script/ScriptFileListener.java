@@ -0,0 +1,32 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.nio.file.Path;
+
+import org.elasticsearch.watcher.FileChangesListener;
+
+/**
+ * Passes changes of files in the scripts directory to the engine.
+ */
+public class ScriptFileListener implements FileChangesListener {
+
+    private final VelocityScriptEngine engine;
+
+    public ScriptFileListener(final VelocityScriptEngine engine) {
+        this.engine = engine;
+    }
+
+    @Override
+    public void onFileCreated(final Path file) {
+        engine.onScriptChanged(file);
+    }
+
+    @Override
+    public void onFileChanged(final Path file) {
+        engine.onScriptChanged(file);
+    }
+
+    @Override
+    public void onFileDeleted(final Path file) {
+        engine.onScriptChanged(file);
+    }
+}
@@ -0,0 +1,74 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.script.ScriptMetadata;
+import org.elasticsearch.script.StoredScriptSource;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Compiles stored Velocity scripts in the background when they are added or changed
+ * in the cluster state, so that the first search using them does not pay the parse cost.
+ */
+public class StoredScriptPrecompiler implements ClusterStateListener {
+
+    private static final Logger logger = LogManager.getLogger(StoredScriptPrecompiler.class);
+
+    private final VelocityScriptEngine scriptEngine;
+
+    private final ThreadPool threadPool;
+
+    /** The latest scripts not yet applied to the engine. */
+    private final AtomicReference<Map<String, String>> pendingScripts = new AtomicReference<>();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public StoredScriptPrecompiler(final VelocityScriptEngine scriptEngine, final ThreadPool threadPool) {
+        this.scriptEngine = scriptEngine;
+        this.threadPool = threadPool;
+    }
+
+    @Override
+    public void clusterChanged(final ClusterChangedEvent event) {
+        final ScriptMetadata scriptMetadata = event.state().metadata().custom(ScriptMetadata.TYPE);
+        if (scriptMetadata == event.previousState().metadata().custom(ScriptMetadata.TYPE)) {
+            return;
+        }
+
+        final Map<String, String> scripts = new HashMap<>();
+        if (scriptMetadata != null) {
+            for (final Map.Entry<String, StoredScriptSource> entry : scriptMetadata.getStoredScripts().entrySet()) {
+                if (VelocityScriptEngine.NAME.equals(entry.getValue().getLang())) {
+                    scripts.put(entry.getKey(), entry.getValue().getSource());
+                }
+            }
+        }
+        pendingScripts.set(scripts);
+        if (running.compareAndSet(false, true)) {
+            threadPool.generic().execute(this::precompile);
+        }
+    }
+
+    private void precompile() {
+        try {
+            Map<String, String> scripts;
+            while ((scripts = pendingScripts.getAndSet(null)) != null) {
+                scriptEngine.updateStoredScripts(scripts);
+            }
+        } catch (final Exception e) {
+            logger.warn("Failed to precompile stored scripts.", e);
+        } finally {
+            running.set(false);
+        }
+        if (pendingScripts.get() != null && running.compareAndSet(false, true)) {
+            threadPool.generic().execute(this::precompile);
+        }
+    }
+}
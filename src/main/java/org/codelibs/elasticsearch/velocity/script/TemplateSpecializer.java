@@ -0,0 +1,297 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.context.InternalContextAdapterImpl;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTElseIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTElseStatement;
+import org.apache.velocity.runtime.parser.node.ASTIdentifier;
+import org.apache.velocity.runtime.parser.node.ASTIfStatement;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTSetDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.ParserTreeConstants;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.codelibs.elasticsearch.velocity.util.ContextProperties;
+
+/**
+ * Folds references to context properties, such as $props.foo, into literal text and
+ * #if statements on them into the chosen branch. The folded values are the ones loaded
+ * when the pass runs, so a specialized tree is only valid until the properties are reloaded.
+ */
+public class TemplateSpecializer {
+
+    private static final Logger logger = LogManager.getLogger(TemplateSpecializer.class);
+
+    /** Directives whose bodies are not rendered in place. */
+    private static final Set<String> OPAQUE_DIRECTIVES = new HashSet<>(Arrays.asList("macro", "define", "literal"));
+
+    /** Directives which do not assign names outside the template; other directives are #parse, #evaluate and macro calls. */
+    private static final Set<String> LOCAL_DIRECTIVES =
+            new HashSet<>(Arrays.asList("foreach", "include", "macro", "define", "literal", "break", "stop"));
+
+    private final Map<String, ContextProperties> constants;
+
+    private final InternalContextAdapter context;
+
+    private final Set<String> foldedNames = new HashSet<>();
+
+    private TemplateSpecializer(final String templateName, final Map<String, ContextProperties> constants) {
+        this.constants = constants;
+        context = new InternalContextAdapterImpl(new VelocityContext(new HashMap<String, Object>(constants)));
+        context.pushCurrentTemplateName(templateName);
+    }
+
+    /**
+     * Checks the initialized node tree without modifying it, so that a copy to specialize is only
+     * parsed for templates which use context properties.
+     *
+     * @param templateName the template name
+     * @param document the initialized node tree
+     * @param contextProps the context properties by name
+     * @return true if {@link #specialize} may fold references or #if statements of the tree
+     */
+    public static boolean isFoldable(final String templateName, final SimpleNode document,
+            final Map<String, ContextProperties> contextProps) {
+        final Map<String, ContextProperties> constants = new HashMap<>(contextProps);
+        if (constants.isEmpty() || !removeAssignedNames(document, constants) || constants.isEmpty()) {
+            return false;
+        }
+        return new TemplateSpecializer(templateName, constants).hasFoldableNode(document);
+    }
+
+    /**
+     * Specializes the initialized node tree in place.
+     *
+     * @param templateName the template name, for logging
+     * @param document the initialized node tree, which is modified
+     * @param contextProps the context properties by name
+     * @return the names of folded context properties, empty if nothing was folded
+     */
+    public static Set<String> specialize(final String templateName, final SimpleNode document,
+            final Map<String, ContextProperties> contextProps) {
+        final Map<String, ContextProperties> constants = new HashMap<>(contextProps);
+        if (constants.isEmpty() || !removeAssignedNames(document, constants)) {
+            return Collections.emptySet();
+        }
+        final TemplateSpecializer specializer = new TemplateSpecializer(templateName, constants);
+        specializer.fold(document);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Folded {} in {}", specializer.foldedNames, templateName);
+        }
+        return specializer.foldedNames;
+    }
+
+    /**
+     * Removes names assigned by #set or #foreach from the constants.
+     *
+     * @return false if the template includes other templates or calls macros which were not inlined,
+     *         which may assign any name as "velocimacro.context.localscope" is false by default
+     */
+    private static boolean removeAssignedNames(final Node node, final Map<String, ContextProperties> constants) {
+        if (node instanceof ASTSetDirective || node instanceof ASTDirective && "foreach".equals(((ASTDirective) node).getDirectiveName())) {
+            final Node reference = node.jjtGetChild(0);
+            if (reference instanceof ASTReference) {
+                constants.remove(((ASTReference) reference).getRootString());
+            }
+        } else if (node instanceof ASTDirective && !LOCAL_DIRECTIVES.contains(((ASTDirective) node).getDirectiveName())) {
+            return false;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (!removeAssignedNames(node.jjtGetChild(i), constants)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasFoldableNode(final Node node) {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            if (child instanceof ASTReference && isFoldable((ASTReference) child)
+                    || child instanceof ASTIfStatement && isConstant(child.jjtGetChild(0))) {
+                return true;
+            }
+            if (!(child instanceof ASTDirective && OPAQUE_DIRECTIVES.contains(((ASTDirective) child).getDirectiveName()))
+                    && hasFoldableNode(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void fold(final Node node) {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            final Node folded = foldNode(child);
+            if (folded != child) {
+                folded.jjtSetParent(node);
+                node.jjtAddChild(folded, i);
+            }
+            if (!(folded instanceof ConstantNode)) {
+                if (!(folded instanceof ASTDirective && OPAQUE_DIRECTIVES.contains(((ASTDirective) folded).getDirectiveName()))) {
+                    fold(folded);
+                }
+            }
+        }
+    }
+
+    private Node foldNode(final Node node) {
+        if (node instanceof ASTReference) {
+            return foldReference((ASTReference) node);
+        } else if (node instanceof ASTIfStatement) {
+            return foldIf((ASTIfStatement) node);
+        }
+        return node;
+    }
+
+    private boolean isFoldable(final ASTReference reference) {
+        return isConstant(reference) && reference.jjtGetNumChildren() > 0 && reference.literal().startsWith("$");
+    }
+
+    private Node foldReference(final ASTReference reference) {
+        if (!isFoldable(reference)) {
+            return reference;
+        }
+        try {
+            final Object value = reference.execute(null, context);
+            if (value instanceof CharSequence || value instanceof Number || value instanceof Boolean) {
+                foldedNames.add(reference.getRootString());
+                return new ConstantNode(value);
+            }
+        } catch (final RuntimeException e) {
+            logger.debug("Could not fold " + reference.literal(), e);
+        }
+        return reference;
+    }
+
+    /**
+     * @return the block of the first branch whose condition holds, or the statement itself
+     *         if a condition before it is not constant
+     */
+    private Node foldIf(final ASTIfStatement statement) {
+        final Set<String> names = new HashSet<>();
+        for (int i = 0; i < statement.jjtGetNumChildren(); i++) {
+            final Node child = statement.jjtGetChild(i);
+            final Node condition;
+            final Node block;
+            if (child instanceof ASTElseStatement) {
+                return replaced(child.jjtGetChild(0), names);
+            } else if (child instanceof ASTElseIfStatement) {
+                condition = child.jjtGetChild(0);
+                block = child.jjtGetChild(1);
+            } else if (i == 0) {
+                condition = child;
+                block = statement.jjtGetChild(++i);
+            } else {
+                return statement;
+            }
+            if (!isConstant(condition)) {
+                return statement;
+            }
+            collectRootNames(condition, names);
+            try {
+                if (condition.evaluate(context)) {
+                    return replaced(block, names);
+                }
+            } catch (final Exception e) {
+                logger.debug("Could not fold #if in " + context.getCurrentTemplateName(), e);
+                return statement;
+            }
+        }
+        return replaced(new ConstantNode(""), names);
+    }
+
+    private Node replaced(final Node node, final Set<String> names) {
+        foldedNames.addAll(names);
+        return node;
+    }
+
+    /**
+     * @return true if all references in the node are property lookups on context properties
+     */
+    private boolean isConstant(final Node node) {
+        if (node instanceof ASTReference) {
+            if (!constants.containsKey(((ASTReference) node).getRootString())) {
+                return false;
+            }
+            for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                if (!(node.jjtGetChild(i) instanceof ASTIdentifier)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if (node instanceof ASTDirective || node instanceof MacroInliner.ArgumentNode) {
+            return false;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (!isConstant(node.jjtGetChild(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void collectRootNames(final Node node, final Set<String> names) {
+        if (node instanceof ASTReference) {
+            names.add(((ASTReference) node).getRootString());
+            return;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            collectRootNames(node.jjtGetChild(i), names);
+        }
+    }
+
+    /**
+     * A value which replaces a folded node, rendered as literal text.
+     */
+    static class ConstantNode extends SimpleNode {
+        private final Object value;
+
+        private final String text;
+
+        ConstantNode(final Object value) {
+            super(ParserTreeConstants.JJTTEXT);
+            this.value = value;
+            text = value.toString();
+        }
+
+        @Override
+        public String literal() {
+            return text;
+        }
+
+        @Override
+        public Object value(final InternalContextAdapter context) {
+            return value;
+        }
+
+        @Override
+        public Object execute(final Object o, final InternalContextAdapter context) {
+            return value;
+        }
+
+        @Override
+        public boolean evaluate(final InternalContextAdapter context) {
+            return value instanceof Boolean ? ((Boolean) value).booleanValue() : true;
+        }
+
+        @Override
+        public boolean render(final InternalContextAdapter context, final Writer writer) throws IOException {
+            writer.write(text);
+            return true;
+        }
+    }
+}
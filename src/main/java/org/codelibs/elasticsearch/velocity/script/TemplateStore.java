@@ -0,0 +1,329 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Keeps the sources of compiled templates in the working directory, so that a restarted
+ * node compiles them before serving requests. Parsed Velocity trees are not serializable,
+ * so an entry holds the source and the script id, with a checksum.
+ *
+ * Entries are files named by the source hash in a directory of the plugin version.
+ * Directories of other versions, and entries which fail the checks, are deleted.
+ */
+public class TemplateStore {
+
+    private static final Logger logger = LogManager.getLogger(TemplateStore.class);
+
+    private static final int MAGIC = 0x564d4331;
+
+    private static final String SUFFIX = ".vmc";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String VERSION_RESOURCE = "/org/codelibs/elasticsearch/velocity/version.properties";
+
+    private final Path dir;
+
+    private final String version;
+
+    /** Runs writes and deletes, so that compiles do not wait for the disk. */
+    private final Executor executor;
+
+    /** Writes and deletes not run yet, run one at a time in order so that an entry ends up as the last task left it. */
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * @param workDir the working directory
+     * @param version the plugin version
+     * @param executor the executor to run writes and deletes on
+     */
+    public TemplateStore(final Path workDir, final String version, final Executor executor) {
+        this.version = version;
+        this.executor = executor;
+        dir = workDir.resolve(version);
+        AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+            deleteOtherVersions(workDir);
+            try {
+                Files.createDirectories(dir);
+            } catch (final IOException e) {
+                logger.warn("Failed to create " + dir, e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return the plugin version, or "unknown" if the build did not record it
+     */
+    public static String getPluginVersion() {
+        try (InputStream in = TemplateStore.class.getResourceAsStream(VERSION_RESOURCE)) {
+            if (in != null) {
+                final Properties props = new Properties();
+                props.load(in);
+                final String value = props.getProperty("version");
+                if (value != null && !value.isEmpty() && !value.startsWith("${")) {
+                    return value;
+                }
+            }
+        } catch (final IOException e) {
+            logger.debug("Failed to read " + VERSION_RESOURCE, e);
+        }
+        return "unknown";
+    }
+
+    private void deleteOtherVersions(final Path workDir) {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(workDir, Files::isDirectory)) {
+            for (final Path path : stream) {
+                if (!path.equals(dir)) {
+                    logger.info("Deleting templates stored by version {}", path.getFileName());
+                    deleteRecursively(path);
+                }
+            }
+        } catch (final IOException e) {
+            logger.warn("Failed to list " + workDir, e);
+        }
+    }
+
+    private static void deleteRecursively(final Path path) {
+        try (Stream<Path> stream = Files.walk(path)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (final IOException e) {
+                    logger.warn("Failed to delete " + p, e);
+                }
+            });
+        } catch (final IOException e) {
+            logger.warn("Failed to delete " + path, e);
+        }
+    }
+
+    /**
+     * Reads all entries, deleting the ones which are corrupted or were written by another version.
+     *
+     * @return the valid entries
+     */
+    public List<Entry> load() {
+        return AccessController.doPrivileged((PrivilegedAction<List<Entry>>) () -> {
+            if (!Files.isDirectory(dir)) {
+                return Collections.emptyList();
+            }
+            final List<Entry> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (final Path path : stream) {
+                    final String fileName = path.getFileName().toString();
+                    if (fileName.endsWith(SUFFIX)) {
+                        final Entry entry = read(path, fileName.substring(0, fileName.length() - SUFFIX.length()));
+                        if (entry != null) {
+                            entries.add(entry);
+                            continue;
+                        }
+                        logger.warn("Deleting invalid template store entry {}", path);
+                    }
+                    // including files left by an interrupted write
+                    delete(path);
+                }
+            } catch (final IOException e) {
+                logger.warn("Failed to list " + dir, e);
+            }
+            return entries;
+        });
+    }
+
+    /**
+     * @return the entry, or null if the file is not a valid entry for the hash and version
+     */
+    private Entry read(final Path path, final String hash) {
+        try {
+            final byte[] bytes = Files.readAllBytes(path);
+            if (bytes.length < Long.BYTES) {
+                return null;
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - Long.BYTES);
+            if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - Long.BYTES, Long.BYTES).getLong()) {
+                return null;
+            }
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - Long.BYTES));
+            if (in.readInt() != MAGIC || !version.equals(in.readUTF()) || !hash.equals(in.readUTF())) {
+                return null;
+            }
+            final String name = in.readBoolean() ? readString(in) : null;
+            final String source = readString(in);
+            if (!hash.equals(VelocityScriptEngine.hash(source))) {
+                return null;
+            }
+            return new Entry(hash, name, source);
+        } catch (final IOException | RuntimeException e) {
+            logger.debug("Failed to read " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the template on the executor unless an entry for the hash exists.
+     *
+     * @param hash the SHA-256 hash of the source
+     * @param name the script id, or null for inline scripts
+     * @param source the script source
+     */
+    public void put(final String hash, final String name, final String source) {
+        run(() -> {
+            final Path path = dir.resolve(hash + SUFFIX);
+            if (Files.exists(path)) {
+                return;
+            }
+            final Path tempPath = dir.resolve(hash + TEMP_SUFFIX);
+            try {
+                final ByteArrayOutputStream baos = new ByteArrayOutputStream(source.length() + 256);
+                final DataOutputStream out = new DataOutputStream(baos);
+                out.writeInt(MAGIC);
+                out.writeUTF(version);
+                out.writeUTF(hash);
+                out.writeBoolean(name != null);
+                if (name != null) {
+                    writeString(out, name);
+                }
+                writeString(out, source);
+                final CRC32 crc = new CRC32();
+                crc.update(baos.toByteArray());
+                out.writeLong(crc.getValue());
+                out.flush();
+                Files.write(tempPath, baos.toByteArray());
+                Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final IOException | RuntimeException e) {
+                logger.warn("Failed to store " + (name != null ? name : hash), e);
+                delete(tempPath);
+            }
+        });
+    }
+
+    /**
+     * Deletes the entry of the hash, for templates which are no longer in use.
+     */
+    public void remove(final String hash) {
+        run(() -> delete(dir.resolve(hash + SUFFIX)));
+    }
+
+    /**
+     * Writes the string as UTF-8 bytes after their length, as writeUTF is limited to 64KB.
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void run(final Runnable task) {
+        tasks.add(task);
+        if (running.compareAndSet(false, true)) {
+            submit();
+        }
+    }
+
+    private void submit() {
+        try {
+            executor.execute(() -> AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+                runTasks();
+                return null;
+            }));
+        } catch (final RuntimeException e) {
+            logger.debug("Failed to submit template store tasks.", e);
+            tasks.clear();
+            running.set(false);
+        }
+    }
+
+    private void runTasks() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    logger.warn("Failed to run a template store task.", e);
+                }
+            }
+        } finally {
+            running.set(false);
+        }
+        if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+            submit();
+        }
+    }
+
+    private static void delete(final Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (final IOException e) {
+            logger.warn("Failed to delete " + path, e);
+        }
+    }
+
+    /**
+     * A stored template.
+     */
+    public static class Entry {
+        private final String hash;
+
+        private final String name;
+
+        private final String source;
+
+        Entry(final String hash, final String name, final String source) {
+            this.hash = hash;
+            this.name = name;
+            this.source = source;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the script id, or null for inline scripts
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getSource() {
+            return source;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.script.ScriptContext;
+
+/**
+ * A Velocity template rendered into encoded bytes, for callers which parse or send the
+ * output without needing it as a String.
+ */
+public abstract class VelocityBytesScript {
+
+    public static final String[] PARAMETERS = {};
+
+    public static final ScriptContext<Factory> CONTEXT = new ScriptContext<>("velocity_bytes", Factory.class);
+
+    private final Map<String, Object> params;
+
+    public VelocityBytesScript(final Map<String, Object> params) {
+        this.params = params;
+    }
+
+    public Map<String, Object> getParams() {
+        return params;
+    }
+
+    /**
+     * @return the output encoded with "output.encoding"
+     */
+    public abstract BytesReference execute();
+
+    public interface Factory {
+        VelocityBytesScript newInstance(Map<String, Object> params);
+    }
+}
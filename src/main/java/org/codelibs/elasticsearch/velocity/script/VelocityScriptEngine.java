@@ -1,45 +1,84 @@
 package org.codelibs.elasticsearch.velocity.script;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.StringWriter;
+import java.io.StringReader;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.velocity.Template;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
 import org.apache.velocity.context.Context;
-import org.apache.velocity.exception.VelocityException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.apache.velocity.runtime.resource.ResourceManager;
+import org.codelibs.elasticsearch.velocity.introspection.FastUberspect;
+import org.codelibs.elasticsearch.velocity.resource.ConcurrentResourceCache;
+import org.codelibs.elasticsearch.velocity.resource.MemoryResourceLoader;
+import org.codelibs.elasticsearch.velocity.stats.ScriptStats;
+import org.codelibs.elasticsearch.velocity.stats.StatsCounter;
+import org.codelibs.elasticsearch.velocity.stats.VelocityStats;
 import org.codelibs.elasticsearch.velocity.util.ContextProperties;
+import org.codelibs.elasticsearch.velocity.util.MappedContextProperties;
+import org.codelibs.elasticsearch.velocity.util.ReusableBytesWriter;
+import org.codelibs.elasticsearch.velocity.util.ReusableStringWriter;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.cache.RemovalNotification;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
 import org.elasticsearch.script.TemplateScript;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.FileWatcher;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.watcher.WatcherHandle;
 
 public class VelocityScriptEngine implements ScriptEngine {
 
@@ -51,26 +90,132 @@ public class VelocityScriptEngine implements ScriptEngine {
     public static final Setting<Settings> SETTING_SCRIPT_VELOCITY_CONTEXT_PROPS =
             Setting.groupSetting("script.velocity.context.props.", Property.NodeScope);
 
+    public static final Setting<Integer> SETTING_SCRIPT_VELOCITY_CACHE_MAX_SIZE =
+            Setting.intSetting("script.velocity.cache.max_size", 1000, 0, Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<TimeValue> SETTING_SCRIPT_VELOCITY_CACHE_EXPIRE = Setting.positiveTimeSetting(
+            "script.velocity.cache.expire", TimeValue.timeValueMillis(0), Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<Boolean> SETTING_SCRIPT_VELOCITY_WARMUP_ENABLED =
+            Setting.boolSetting("script.velocity.warmup.enabled", false, Property.NodeScope);
+
+    public static final Setting<Boolean> SETTING_SCRIPT_VELOCITY_PRECOMPILE_ENABLED =
+            Setting.boolSetting("script.velocity.precompile.enabled", true, Property.NodeScope);
+
+    public static final Setting<Boolean> SETTING_SCRIPT_VELOCITY_STORE_ENABLED =
+            Setting.boolSetting("script.velocity.store.enabled", false, Property.NodeScope);
+
+    public static final Setting<Integer> SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_MAX_SIZE =
+            Setting.intSetting("script.velocity.output_cache.max_size", 1000, 0, Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<TimeValue> SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_EXPIRE = Setting.positiveTimeSetting(
+            "script.velocity.output_cache.expire", TimeValue.timeValueMinutes(1), Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<Boolean> SETTING_SCRIPT_VELOCITY_SPECIALIZE_ENABLED =
+            Setting.boolSetting("script.velocity.specialize.enabled", true, Property.NodeScope);
+
+    public static final Setting<Boolean> SETTING_SCRIPT_VELOCITY_MACRO_INLINE_ENABLED =
+            Setting.boolSetting("script.velocity.macro.inline.enabled", false, Property.NodeScope);
+
+    public static final Setting<TimeValue> SETTING_SCRIPT_VELOCITY_RENDER_MAX_TIME = Setting.positiveTimeSetting(
+            "script.velocity.render.max_time", TimeValue.timeValueMillis(0), Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<Long> SETTING_SCRIPT_VELOCITY_RENDER_MAX_VISITS =
+            Setting.longSetting("script.velocity.render.max_visits", 0L, 0L, Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<ByteSizeValue> SETTING_SCRIPT_VELOCITY_RENDER_MAX_OUTPUT_SIZE = Setting.byteSizeSetting(
+            "script.velocity.render.max_output_size", ByteSizeValue.ZERO, Property.NodeScope, Property.Dynamic);
+
     public static final String NAME = "velocity";
 
-    private VelocityEngine velocityEngine;
+    /** Stats key for scripts compiled without an id. */
+    public static final String INLINE_SCRIPT_ID = "_inline";
+
+    /** Replaced when macro libraries are reloaded. */
+    private volatile RuntimeInstance runtimeInstance;
+
+    private final Properties velocityProps = new Properties();
+
+    /** True if library macro calls are expanded into compiled scripts. */
+    private final boolean macroInlineEnabled;
+
+    private WatcherHandle<FileWatcher> scriptsWatcherHandle;
+
+    /** Charset of "output.encoding", used by the bytes script context. */
+    private Charset outputCharset;
 
     private File workDir;
 
-    private final Queue<File> templateFileQueue = new ConcurrentLinkedQueue<>();
+    private final boolean templateStoreEnabled;
+
+    /** Sources of compiled templates kept in the working directory, or null until opened or if disabled. */
+    private volatile TemplateStore templateStore;
+
+    private final Path scriptsPath;
+
+    private final MemoryResourceLoader memoryResourceLoader = new MemoryResourceLoader();
+
+    private volatile Cache<String, VelocityScriptTemplate> templateCache;
+
+    /** Max size of the template cache; templates are not stored if it is 0. */
+    private volatile int templateCacheMaxSize;
+
+    private final OutputCache outputCache;
+
+    private final VelocitySlowLog slowLog;
+
+    private volatile long maxRenderTimeNanos;
+
+    private volatile long maxRenderVisits;
+
+    private volatile long maxRenderOutput;
+
+    private volatile CircuitBreaker circuitBreaker;
+
+    /** Context properties folded into templates, or null if specialization is disabled. */
+    private final Map<String, ContextProperties> specializedPropMap;
 
     private final Map<String, Object> contextPropMap = new ConcurrentHashMap<>();
 
+    private final StatsCounter totalStats = new StatsCounter();
+
+    /** Source hashes of stored scripts by id, updated from the cluster state. */
+    private Map<String, String> storedScriptHashMap = Collections.emptyMap();
+
+    private final Map<String, StatsCounter> scriptStatsMap = new ConcurrentHashMap<>();
+
     public VelocityScriptEngine(final Settings settings, Path configPath) {
 
         workDir = findWorkDir(settings);
+        scriptsPath = configPath.resolve("scripts");
+        deleteTemplateFiles(workDir);
+        MappedContextProperties.deleteIndexFiles(workDir);
+        templateStoreEnabled = SETTING_SCRIPT_VELOCITY_STORE_ENABLED.get(settings);
+
+        templateCache = buildTemplateCache(SETTING_SCRIPT_VELOCITY_CACHE_MAX_SIZE.get(settings),
+                SETTING_SCRIPT_VELOCITY_CACHE_EXPIRE.get(settings));
+        outputCache = new OutputCache(SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_MAX_SIZE.get(settings),
+                SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_EXPIRE.get(settings));
+        slowLog = new VelocitySlowLog(settings);
+        setMaxRenderTime(SETTING_SCRIPT_VELOCITY_RENDER_MAX_TIME.get(settings));
+        setMaxRenderVisits(SETTING_SCRIPT_VELOCITY_RENDER_MAX_VISITS.get(settings));
+        setMaxRenderOutputSize(SETTING_SCRIPT_VELOCITY_RENDER_MAX_OUTPUT_SIZE.get(settings));
 
         final Settings contextPropSettings = settings.getByPrefix(SETTING_SCRIPT_VELOCITY_CONTEXT_PROPS.getKey());
         for (final String key : contextPropSettings.keySet()) {
             if (key.indexOf('.') == -1) {
                 final Path path = configPath.resolve(contextPropSettings.get(key));
                 if (exists(path)) {
-                    final ContextProperties properties = new ContextProperties(path.toFile());
+                    final String backend = contextPropSettings.get(key + ".backend", "heap");
+                    final ContextProperties properties;
+                    if ("mmap".equals(backend)) {
+                        properties = new MappedContextProperties(path.toFile(), workDir, key);
+                    } else {
+                        if (!"heap".equals(backend)) {
+                            logger.warn("{} is not a context properties backend, using heap.", backend);
+                        }
+                        properties = new ContextProperties(path.toFile());
+                    }
                     contextPropMap.put(key, properties);
                     final String interval = contextPropSettings.get(key + ".interval");
                     if (interval != null) {
@@ -86,7 +231,20 @@ public class VelocityScriptEngine implements ScriptEngine {
             }
         }
 
-        final Properties props = new Properties();
+        if (SETTING_SCRIPT_VELOCITY_SPECIALIZE_ENABLED.get(settings)) {
+            specializedPropMap = new HashMap<>();
+            for (final Map.Entry<String, Object> entry : contextPropMap.entrySet()) {
+                final ContextProperties properties = (ContextProperties) entry.getValue();
+                specializedPropMap.put(entry.getKey(), properties);
+                properties.addReloadListener(() -> respecializeTemplates(properties));
+            }
+        } else {
+            specializedPropMap = null;
+        }
+
+        macroInlineEnabled = SETTING_SCRIPT_VELOCITY_MACRO_INLINE_ENABLED.get(settings);
+
+        final Properties props = velocityProps;
         final Settings velocitySettings = settings.getByPrefix(SETTING_SCRIPT_VELOCITY_PROPS.getKey());
         for (final String key : velocitySettings.keySet()) {
             props.put(key, velocitySettings.get(key));
@@ -99,28 +257,340 @@ public class VelocityScriptEngine implements ScriptEngine {
             props.put("resource.loader", "WORK_TMPL,ES_TMPL");
         }
 
-        initPropertyValue(props, "WORK_TMPL.resource.loader.class", "org.apache.velocity.runtime.resource.loader.FileResourceLoader");
-        initPropertyValue(props, "WORK_TMPL.resource.loader.path", workDir.getAbsolutePath());
-        initPropertyValue(props, "WORK_TMPL.resource.loader.cache", "true");
+        if (initPropertyValue(props, "WORK_TMPL.resource.loader.class", MemoryResourceLoader.class.getName())) {
+            props.put("WORK_TMPL.resource.loader.instance", memoryResourceLoader);
+        }
+        initPropertyValue(props, "WORK_TMPL.resource.loader.cache", "false");
         initPropertyValue(props, "WORK_TMPL.resource.loader.modificationCheckInterval", "0");
 
         initPropertyValue(props, "ES_TMPL.resource.loader.class", "org.apache.velocity.runtime.resource.loader.FileResourceLoader");
-        initPropertyValue(props, "ES_TMPL.resource.loader.path", configPath.resolve("scripts").toFile().getAbsolutePath());
+        initPropertyValue(props, "ES_TMPL.resource.loader.path", scriptsPath.toFile().getAbsolutePath());
         initPropertyValue(props, "ES_TMPL.resource.loader.cache", "true");
-        initPropertyValue(props, "ES_TMPL.resource.loader.modificationCheckInterval", "60");
+        // the scripts watcher replaces changed templates in ConcurrentResourceCache, so renders do not check files;
+        // with another cache, renders check them every 60 seconds
+        initPropertyValue(props, "resource.manager.cache.class", ConcurrentResourceCache.class.getName());
+        initPropertyValue(props, "ES_TMPL.resource.loader.modificationCheckInterval",
+                ConcurrentResourceCache.class.getName().equals(props.get("resource.manager.cache.class")) ? "0" : "60");
 
         final Path logsFile = Paths.get(Environment.PATH_LOGS_SETTING.get(settings));
         initPropertyValue(props, "velocimacro.library.autoreload", "false");
+        initPropertyValue(props, "runtime.introspector.uberspect", FastUberspect.class.getName());
         initPropertyValue(props, "input.encoding", "UTF-8");
         initPropertyValue(props, "output.encoding", "UTF-8");
         initPropertyValue(props, "runtime.log", logsFile.resolve("velocity.log").toFile().getAbsolutePath());
 
-        velocityEngine = AccessController.doPrivileged((PrivilegedAction<VelocityEngine>) () -> {
-            final VelocityEngine engine = new VelocityEngine(props);
-            engine.init();
-            return engine;
+        runtimeInstance = createRuntimeInstance();
+        outputCharset = Charset.forName(runtimeInstance.getString(RuntimeConstants.OUTPUT_ENCODING, "UTF-8"));
+
+    }
+
+    private RuntimeInstance createRuntimeInstance() {
+        return AccessController.doPrivileged((PrivilegedAction<RuntimeInstance>) () -> {
+            final RuntimeInstance ri = new RuntimeInstance();
+            for (final Map.Entry<Object, Object> entry : velocityProps.entrySet()) {
+                ri.setProperty(entry.getKey().toString(), entry.getValue());
+            }
+            ri.init();
+            if (macroInlineEnabled) {
+                final MacroInliner inliner = MacroInliner.load(ri);
+                if (inliner != null) {
+                    ri.setApplicationAttribute(MacroInliner.class.getName(), inliner);
+                }
+            }
+            return ri;
+        });
+    }
+
+    private RuntimeInstance getRuntimeInstance() {
+        return runtimeInstance;
+    }
+
+    private List<String> getMacroLibraries() {
+        return Arrays.asList(runtimeInstance.getConfiguration().getStringArray(RuntimeConstants.VM_LIBRARY));
+    }
+
+    public void setClusterSettings(final ClusterSettings clusterSettings) {
+        clusterSettings.addSettingsUpdateConsumer(SETTING_SCRIPT_VELOCITY_CACHE_MAX_SIZE, SETTING_SCRIPT_VELOCITY_CACHE_EXPIRE,
+                this::setTemplateCache);
+        clusterSettings.addSettingsUpdateConsumer(SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_MAX_SIZE,
+                SETTING_SCRIPT_VELOCITY_OUTPUT_CACHE_EXPIRE, outputCache::setLimits);
+        clusterSettings.addSettingsUpdateConsumer(SETTING_SCRIPT_VELOCITY_RENDER_MAX_TIME, this::setMaxRenderTime);
+        clusterSettings.addSettingsUpdateConsumer(SETTING_SCRIPT_VELOCITY_RENDER_MAX_VISITS, this::setMaxRenderVisits);
+        clusterSettings.addSettingsUpdateConsumer(SETTING_SCRIPT_VELOCITY_RENDER_MAX_OUTPUT_SIZE, this::setMaxRenderOutputSize);
+        slowLog.setClusterSettings(clusterSettings);
+    }
+
+    private void setMaxRenderTime(final TimeValue maxTime) {
+        maxRenderTimeNanos = maxTime.nanos();
+    }
+
+    private void setMaxRenderVisits(final long maxVisits) {
+        maxRenderVisits = maxVisits;
+    }
+
+    private void setMaxRenderOutputSize(final ByteSizeValue maxOutputSize) {
+        maxRenderOutput = maxOutputSize.getBytes();
+    }
+
+    /**
+     * @param circuitBreaker the breaker charged with render output
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    ContextProperties getContextProperties(final String name) {
+        return (ContextProperties) contextPropMap.get(name);
+    }
+
+    /**
+     * Starts reloading modified context properties files in the background.
+     *
+     * @param threadPool the thread pool to run the checks on
+     */
+    public void startWatching(final ThreadPool threadPool) {
+        for (final Object value : contextPropMap.values()) {
+            if (value instanceof ContextProperties) {
+                ((ContextProperties) value).startWatching(threadPool);
+            }
+        }
+    }
+
+    /**
+     * Watches the scripts directory, replacing changed templates in the resource cache
+     * and reloading macro libraries when one of them changes.
+     *
+     * @param resourceWatcherService the service to run the watcher on
+     */
+    public void startWatchingScripts(final ResourceWatcherService resourceWatcherService) {
+        final FileWatcher watcher = new FileWatcher(scriptsPath);
+        watcher.addListener(new ScriptFileListener(this));
+        try {
+            scriptsWatcherHandle = resourceWatcherService.add(watcher, ResourceWatcherService.Frequency.MEDIUM);
+        } catch (final IOException e) {
+            logger.warn("Failed to watch " + scriptsPath, e);
+        }
+    }
+
+    /**
+     * Parses the changed template off the request path and swaps it into the resource cache
+     * if it is a ConcurrentResourceCache, or reloads macro libraries if the file is one of them.
+     * Memoized outputs are dropped in any case, as they may include the file.
+     *
+     * @param file the created, changed or deleted file
+     */
+    void onScriptChanged(final Path file) {
+        try {
+            final String name = scriptsPath.relativize(file).toString().replace(File.separatorChar, '/');
+            if (getMacroLibraries().contains(name)) {
+                reloadMacroLibraries();
+                return;
+            }
+
+            final RuntimeInstance ri = runtimeInstance;
+            final Object cache = ri.getApplicationAttribute(ConcurrentResourceCache.class.getName());
+            if (cache instanceof ConcurrentResourceCache && replaceTemplate((ConcurrentResourceCache) cache, ri, name, file)) {
+                logger.info("Reloaded {}", name);
+            }
+        } finally {
+            outputCache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return false if the changed template could not be parsed, keeping the previous one
+     */
+    private boolean replaceTemplate(final ConcurrentResourceCache resourceCache, final RuntimeInstance ri, final String name,
+            final Path file) {
+        resourceCache.remove(ResourceManager.RESOURCE_CONTENT + name);
+        final String key = ResourceManager.RESOURCE_TEMPLATE + name;
+        if (resourceCache.get(key) == null) {
+            return true;
+        }
+        if (!AccessController.doPrivileged((PrivilegedAction<Boolean>) () -> Files.exists(file))) {
+            resourceCache.remove(key);
+            return true;
+        }
+        try {
+            final Template template = AccessController.doPrivileged((PrivilegedExceptionAction<Template>) () -> {
+                final String encoding = ri.getString(RuntimeConstants.INPUT_ENCODING, "UTF-8");
+                final String source = new String(Files.readAllBytes(file), encoding);
+                final Template t = VelocityScriptTemplate.parseTemplate(ri, name, source);
+                t.setEncoding(encoding);
+                return t;
+            });
+            resourceCache.put(key, template);
+            return true;
+        } catch (final Exception e) {
+            logger.warn("Failed to reload " + name + ", keeping the previous template.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Folds the values of the reloaded properties into the cached templates they were folded into,
+     * on the thread which reloaded them. Evicted templates still used by scripts render without
+     * specialization until they are compiled again.
+     */
+    private void respecializeTemplates(final ContextProperties properties) {
+        for (final VelocityScriptTemplate template : templateCache.values()) {
+            try {
+                template.respecialize(properties);
+            } catch (final Exception e) {
+                logger.warn("Failed to specialize " + template.name + " with the reloaded " + properties.getName() + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Builds a new runtime loading the current macro libraries, and parses the cached
+     * templates with it before renders switch to it.
+     */
+    synchronized void reloadMacroLibraries() {
+        final long startTime = System.nanoTime();
+        final RuntimeInstance ri;
+        try {
+            ri = createRuntimeInstance();
+        } catch (final Exception e) {
+            logger.warn("Failed to reload macro libraries.", e);
+            return;
+        }
+        for (final VelocityScriptTemplate template : templateCache.values()) {
+            try {
+                template.reload(ri);
+            } catch (final Exception e) {
+                logger.warn("Failed to parse " + template.name + " with the reloaded macro libraries.", e);
+            }
+        }
+        runtimeInstance = ri;
+        outputCache.invalidateAll();
+        logger.info("Reloaded macro libraries in {}", TimeValue.timeValueNanos(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Parses all templates in the scripts directory into the resource cache in parallel,
+     * and logs syntax errors. Velocimacro libraries are loaded when the engine is initialized.
+     *
+     * @param executor the executor to parse templates on
+     */
+    public void warmUp(final ExecutorService executor) {
+        final long startTime = System.nanoTime();
+        final List<String> libraries = getMacroLibraries();
+        final List<String> names = AccessController.doPrivileged((PrivilegedAction<List<String>>) () -> {
+            if (!Files.isDirectory(scriptsPath)) {
+                return Collections.emptyList();
+            }
+            try (Stream<Path> stream = Files.walk(scriptsPath)) {
+                return stream.filter(path -> {
+                    final String fileName = path.getFileName().toString();
+                    return (fileName.endsWith(".vm") || fileName.endsWith(".velocity")) && Files.isRegularFile(path);
+                }).map(path -> scriptsPath.relativize(path).toString().replace(File.separatorChar, '/'))
+                        .filter(name -> !libraries.contains(name)).collect(Collectors.toList());
+            } catch (final IOException e) {
+                logger.warn("Failed to list templates in " + scriptsPath, e);
+                return Collections.emptyList();
+            }
+        });
+
+        final List<Future<?>> futures = new ArrayList<>(names.size());
+        for (final String name : names) {
+            futures.add(executor.submit(() -> {
+                try {
+                    AccessController.doPrivileged((PrivilegedAction<Template>) () -> runtimeInstance.getTemplate(name));
+                } catch (final Exception e) {
+                    logger.warn("Failed to parse " + name, e);
+                }
+            }));
+        }
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("Interrupted while warming up templates.");
+                return;
+            } catch (final ExecutionException e) {
+                logger.warn("Failed to warm up a template.", e);
+            }
+        }
+        logger.info("Warmed up {} templates in {}", names.size(), TimeValue.timeValueNanos(System.nanoTime() - startTime));
+    }
+
+    /**
+     * Opens the template store and compiles the templates it keeps in parallel, without
+     * blocking the caller. Templates compiled from now on are stored in the background.
+     *
+     * @param executor the executor to compile templates and write the store on
+     */
+    public void loadTemplateStore(final ExecutorService executor) {
+        if (!templateStoreEnabled) {
+            return;
+        }
+        executor.execute(() -> {
+            final long startTime = System.nanoTime();
+            final TemplateStore store = new TemplateStore(workDir.toPath(), TemplateStore.getPluginVersion(), executor);
+            final List<TemplateStore.Entry> entries = store.load();
+            templateStore = store;
+            if (entries.isEmpty()) {
+                return;
+            }
+            final CountDown countDown = new CountDown(entries.size());
+            for (final TemplateStore.Entry entry : entries) {
+                executor.execute(() -> {
+                    try {
+                        getScriptTemplate(entry.getName(), entry.getHash(), entry.getSource(), getScriptStats(entry.getName()));
+                    } catch (final Exception e) {
+                        logger.warn("Failed to compile stored template " + (entry.getName() != null ? entry.getName() : entry.getHash()),
+                                e);
+                        store.remove(entry.getHash());
+                    }
+                    if (countDown.countDown()) {
+                        logger.info("Loaded {} stored templates in {}", entries.size(),
+                                TimeValue.timeValueNanos(System.nanoTime() - startTime));
+                    }
+                });
+            }
         });
+    }
 
+    private void setTemplateCache(final int maxSize, final TimeValue expire) {
+        final Cache<String, VelocityScriptTemplate> oldCache = templateCache;
+        templateCache = buildTemplateCache(maxSize, expire);
+        oldCache.invalidateAll();
+    }
+
+    private Cache<String, VelocityScriptTemplate> buildTemplateCache(final int maxSize, final TimeValue expire) {
+        templateCacheMaxSize = maxSize;
+        final CacheBuilder<String, VelocityScriptTemplate> cacheBuilder = CacheBuilder.builder();
+        cacheBuilder.setMaximumWeight(maxSize);
+        if (expire.getNanos() != 0) {
+            cacheBuilder.setExpireAfterAccess(expire);
+        }
+        cacheBuilder.removalListener(notification -> {
+            final TemplateStore store = templateStore;
+            if (notification.getRemovalReason() == RemovalNotification.RemovalReason.EVICTED) {
+                if (store != null) {
+                    store.remove(notification.getKey());
+                }
+                // scripts still using the template add their counters again on the next render
+                final String storedId = notification.getValue().getStoredId();
+                if (storedId != null) {
+                    scriptStatsMap.remove(storedId);
+                }
+            }
+            final String cacheName = notification.getValue().getCacheName();
+            if (cacheName != null) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Removing {}", cacheName);
+                }
+                notification.getValue().removeSource();
+            }
+        });
+        return cacheBuilder.build();
+    }
+
+    static String hash(final String source) {
+        return MessageDigests.toHexString(MessageDigests.sha256().digest(source.getBytes(StandardCharsets.UTF_8)));
     }
 
     private boolean exists(final Path path) {
@@ -150,6 +620,24 @@ public class VelocityScriptEngine implements ScriptEngine {
                 "Could not create a working directory: " + String.join(", ", lookupPathList.toArray(new String[lookupPathList.size()])));
     }
 
+    /**
+     * Deletes template files written into the working directory by older versions.
+     */
+    private void deleteTemplateFiles(final File dir) {
+        final File[] files = dir.listFiles((d, name) -> name.startsWith("templ") && name.endsWith(".vm"));
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deleting {}", file.getAbsolutePath());
+            }
+            if (!file.delete()) {
+                logger.warn("Failed to delete {}.", file.getAbsolutePath());
+            }
+        }
+    }
+
     private boolean initPropertyValue(final Properties props, final String key, final String value) {
         if (!props.containsKey(key)) {
             props.put(key, value);
@@ -166,138 +654,663 @@ public class VelocityScriptEngine implements ScriptEngine {
     @Override
     public <T> T compile(final String templateName, final String templateSource, ScriptContext<T> context,
             final Map<String, String> options) {
-        final VelocityScriptTemplate scriptTemplate = new VelocityScriptTemplate(velocityEngine, workDir, templateSource);
-        final File templateFile = scriptTemplate.getTemplateFile();
-        if (templateFile != null) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Adding {}", templateFile.getAbsolutePath());
+        final String storedId = getStoredScriptId(templateName, templateSource);
+        final String sourceHash = hash(templateSource);
+        // slow logs and per-script thresholds use the source hash of inline scripts
+        final String scriptId = storedId != null ? storedId : sourceHash;
+        final VelocityScriptTemplate scriptTemplate = getScriptTemplate(storedId, sourceHash, templateSource, getScriptStats(storedId));
+        final ContextProperties[] memoDependencies = OutputCache.isMemoizable(templateSource) ? getMemoDependencies(scriptTemplate) : null;
+        if (context == VelocityBytesScript.CONTEXT) {
+            final VelocityBytesScript.Factory compiled =
+                    params -> new VelocityExecutableBytesScript(scriptTemplate, scriptId, storedId, params, memoDependencies);
+            return context.factoryClazz.cast(compiled);
+        }
+        TemplateScript.Factory compiled =
+                params -> new VelocityExecutableScript(scriptTemplate, scriptId, storedId, params, memoDependencies);
+        return context.factoryClazz.cast(compiled);
+    }
+
+    /**
+     * @return the id of a stored script, or null for an inline script, whose source is passed as its name by the script service
+     */
+    static String getStoredScriptId(final String templateName, final String templateSource) {
+        return templateName != null && !templateName.equals(templateSource) ? templateName : null;
+    }
+
+    /**
+     * @return the context properties referenced by the template, or all of them if
+     *         the template calls macros or includes other templates
+     */
+    private ContextProperties[] getMemoDependencies(final VelocityScriptTemplate scriptTemplate) {
+        final Set<String> names = scriptTemplate.getReferenceNames();
+        final List<ContextProperties> dependencies = new ArrayList<>();
+        for (final Map.Entry<String, Object> entry : contextPropMap.entrySet()) {
+            if (entry.getValue() instanceof ContextProperties && (names == null || names.contains(entry.getKey()))) {
+                dependencies.add((ContextProperties) entry.getValue());
             }
-            templateFileQueue.add(templateFile);
         }
-        TemplateScript.Factory compiled = params -> {
-            final Map<String, Object> scriptVars;
-            if (!contextPropMap.isEmpty()) {
-                scriptVars = new HashMap<>(contextPropMap);
-            } else {
-                scriptVars = new HashMap<>();
+        return dependencies.toArray(new ContextProperties[dependencies.size()]);
+    }
+
+    /**
+     * @param storedId the stored script id, or null to get the counters of inline scripts
+     */
+    private StatsCounter getScriptStats(final String storedId) {
+        final String key = storedId != null ? storedId : INLINE_SCRIPT_ID;
+        final StatsCounter scriptStats = scriptStatsMap.get(key);
+        if (scriptStats != null) {
+            return scriptStats;
+        }
+        return scriptStatsMap.computeIfAbsent(key, k -> new StatsCounter());
+    }
+
+    /**
+     * @param storedId the stored script id, or null for an inline script, which is named by its source hash
+     */
+    private VelocityScriptTemplate getScriptTemplate(final String storedId, final String sourceHash, final String templateSource,
+            final StatsCounter scriptStats) {
+        try {
+            return templateCache.computeIfAbsent(sourceHash, key -> {
+                final String cacheName = templateSource.startsWith("##cache") ? "templ" + key + ".vm" : null;
+                if (cacheName != null && logger.isDebugEnabled()) {
+                    logger.debug("Adding {}", cacheName);
+                }
+                final long startTime = System.nanoTime();
+                final VelocityScriptTemplate template = new VelocityScriptTemplate(this::getRuntimeInstance, memoryResourceLoader, cacheName,
+                        storedId, templateSource, specializedPropMap);
+                final long took = System.nanoTime() - startTime;
+                totalStats.onCompile(took);
+                scriptStats.onCompile(took);
+                slowLog.onCompile(storedId != null ? storedId : key, took, templateSource.length());
+                final TemplateStore store = templateStore;
+                if (store != null && templateCacheMaxSize > 0) {
+                    // written on the store executor
+                    store.put(key, storedId, templateSource);
+                }
+                return template;
+            });
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            scriptVars.putAll(params);
-            return new VelocityExecutableScript(scriptTemplate, scriptVars);
-        };
-        return context.factoryClazz.cast(compiled);
+            throw new ElasticsearchException("Could not compile " + (storedId != null ? storedId : sourceHash), e.getCause());
+        }
+    }
+
+    /**
+     * Compiles new or changed stored scripts into the template cache, and evicts
+     * templates of replaced or deleted ones.
+     *
+     * @param scripts the sources of all stored Velocity scripts by id
+     */
+    public synchronized void updateStoredScripts(final Map<String, String> scripts) {
+        final Map<String, String> hashMap = new HashMap<>();
+        for (final Map.Entry<String, String> entry : scripts.entrySet()) {
+            final String id = entry.getKey();
+            final String sourceHash = hash(entry.getValue());
+            hashMap.put(id, sourceHash);
+            if (!sourceHash.equals(storedScriptHashMap.get(id))) {
+                try {
+                    getScriptTemplate(id, sourceHash, entry.getValue(), getScriptStats(id));
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Precompiled stored script {}", id);
+                    }
+                } catch (final Exception e) {
+                    logger.warn("Failed to precompile stored script " + id, e);
+                }
+            }
+        }
+        for (final String id : storedScriptHashMap.keySet()) {
+            if (!hashMap.containsKey(id)) {
+                scriptStatsMap.remove(id);
+            }
+        }
+        final Set<String> liveHashes = new HashSet<>(hashMap.values());
+        for (final Map.Entry<String, String> entry : storedScriptHashMap.entrySet()) {
+            if (!liveHashes.contains(entry.getValue())) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Evicting stored script {}", entry.getKey());
+                }
+                templateCache.invalidate(entry.getValue());
+                final TemplateStore store = templateStore;
+                if (store != null) {
+                    store.remove(entry.getValue());
+                }
+            }
+        }
+        storedScriptHashMap = hashMap;
+    }
+
+    public VelocityStats stats() {
+        final Map<String, Long> reloads = new HashMap<>();
+        for (final Map.Entry<String, Object> entry : contextPropMap.entrySet()) {
+            if (entry.getValue() instanceof ContextProperties) {
+                reloads.put(entry.getKey(), ((ContextProperties) entry.getValue()).getReloadCount());
+            }
+        }
+        final Map<String, ScriptStats> scripts = new HashMap<>();
+        for (final Map.Entry<String, StatsCounter> entry : scriptStatsMap.entrySet()) {
+            scripts.put(entry.getKey(), entry.getValue().stats());
+        }
+        final Cache<String, VelocityScriptTemplate> cache = templateCache;
+        final Cache.CacheStats cacheStats = cache.stats();
+        final Cache.CacheStats outputCacheStats = outputCache.stats();
+        return new VelocityStats(totalStats.stats(), cache.count(), cacheStats.getHits(), cacheStats.getMisses(),
+                cacheStats.getEvictions(), outputCache.count(), outputCacheStats.getHits(), outputCacheStats.getMisses(),
+                outputCacheStats.getEvictions(), reloads, scripts);
     }
 
     @Override
     public void close() {
-        for (final File templateFile : templateFileQueue) {
-            if (logger.isDebugEnabled()) {
-                logger.debug("Deleting {}", templateFile.getAbsolutePath());
-            }
-            if (!templateFile.delete()) {
-                logger.warn("Failed to delete {}.", templateFile.getAbsolutePath());
+        for (final Object value : contextPropMap.values()) {
+            if (value instanceof ContextProperties) {
+                ((ContextProperties) value).stopWatching();
             }
         }
+        if (scriptsWatcherHandle != null) {
+            scriptsWatcherHandle.stop();
+        }
+        templateCache.invalidateAll();
+        outputCache.invalidateAll();
     }
 
     public static class VelocityScriptTemplate {
-        private Template template;
+        /** Directives which only render the template they are in. */
+        private static final Set<String> LOCAL_DIRECTIVES =
+                new HashSet<>(Arrays.asList("foreach", "break", "stop", "define", "macro", "literal"));
+
+        private final Supplier<RuntimeInstance> runtimeSupplier;
+
+        private volatile Compiled compiled;
+
+        private final String cacheName;
+
+        private final MemoryResourceLoader resourceLoader;
 
-        private File templateFile;
+        /** The source entry of a "##cache" script in the resource loader. */
+        private volatile Object sourceEntry;
 
-        private String script;
+        private final String name;
 
-        private final VelocityEngine velocityEngine;
+        /** The stored script id, or null for inline scripts. */
+        private final String storedId;
 
-        public VelocityScriptTemplate(final VelocityEngine velocityEngine, final File workDir, final String script) {
-            this.velocityEngine = velocityEngine;
-            if (script.startsWith("##cache")) {
-                String encoding = (String) velocityEngine.getProperty("input.encoding");
-                if (encoding == null) {
-                    encoding = "UTF-8";
+        private final String script;
+
+        /** Context properties to fold into the template, or null. */
+        private final Map<String, ContextProperties> contextProps;
+
+        private volatile Specialization specialization;
+
+        /** Running average of the output length in chars, used to pre-size render buffers. */
+        private volatile int outputSizeEstimate;
+
+        /** Running average of the output size in UTF-8 bytes, used to pre-size byte render buffers. */
+        private volatile int outputBytesEstimate;
+
+        /**
+         * @param runtimeSupplier the current runtime, which parses the script again when it is replaced
+         * @param resourceLoader the loader holding sources of "##cache" scripts
+         * @param cacheName the resource name for a "##cache" script, or null
+         * @param templateName the script id, or null for inline scripts
+         * @param script the script source
+         * @param contextProps the context properties to fold into the template, or null
+         */
+        public VelocityScriptTemplate(final Supplier<RuntimeInstance> runtimeSupplier, final MemoryResourceLoader resourceLoader,
+                final String cacheName, final String templateName, final String script,
+                final Map<String, ContextProperties> contextProps) {
+            this.runtimeSupplier = runtimeSupplier;
+            this.cacheName = cacheName;
+            this.resourceLoader = resourceLoader;
+            this.storedId = templateName;
+            this.script = script;
+            this.contextProps = contextProps == null || contextProps.isEmpty() ? null : contextProps;
+            if (cacheName != null) {
+                name = cacheName;
+            } else {
+                name = templateName != null ? templateName : Integer.toString(script.hashCode());
+            }
+            compiled = compile(runtimeSupplier.get());
+            if (this.contextProps != null) {
+                specialize(compiled);
+            }
+        }
+
+        private Compiled compile(final RuntimeInstance runtimeInstance) {
+            return AccessController.doPrivileged((PrivilegedAction<Compiled>) () -> {
+                if (cacheName != null) {
+                    // put again, as an evicted template still used by a script may be compiled by a new runtime
+                    sourceEntry = resourceLoader.putSource(cacheName, script);
+                    return new Compiled(runtimeInstance, inlineMacros(runtimeInstance, runtimeInstance.getTemplate(cacheName)));
                 }
+                return new Compiled(runtimeInstance, inlineMacros(runtimeInstance, parseTemplate(runtimeInstance, name, script)));
+            });
+        }
+
+        /**
+         * Expands library macro calls if the runtime was built with macro inlining enabled.
+         * The runtime is replaced when a library changes, which compiles the script again.
+         */
+        private static Template inlineMacros(final RuntimeInstance runtimeInstance, final Template template) {
+            final Object inliner = runtimeInstance.getApplicationAttribute(MacroInliner.class.getName());
+            if (inliner instanceof MacroInliner) {
+                ((MacroInliner) inliner).inline(template);
+            }
+            return template;
+        }
 
-                if (!workDir.exists() && !workDir.mkdirs()) {
-                    throw new VelocityException("Could not create a working directory: " + workDir.getAbsolutePath());
+        /**
+         * Parses the script again if it was compiled by another runtime, for example
+         * before macro libraries were reloaded.
+         *
+         * @param runtimeInstance the current runtime
+         * @return the template compiled by the runtime
+         */
+        synchronized Compiled reload(final RuntimeInstance runtimeInstance) {
+            Compiled current = compiled;
+            if (current.runtimeInstance != runtimeInstance) {
+                current = compile(runtimeInstance);
+                compiled = current;
+                if (contextProps != null) {
+                    specialize(current);
                 }
+            }
+            return current;
+        }
 
-                templateFile = null;
-                BufferedWriter bw = null;
-                try {
-                    templateFile = File.createTempFile("templ", ".vm", workDir);
-                    bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(templateFile), encoding));
-                    bw.write(script);
-                    bw.flush();
-                } catch (final IOException e) {
-                    throw new VelocityException("Failed to create a template file.", e);
-                } finally {
-                    if (bw != null) {
-                        try {
-                            bw.close();
-                        } catch (final IOException e) {
-                            // ignore
-                        }
-                    }
+        private Compiled getCompiled() {
+            final Compiled current = compiled;
+            final RuntimeInstance runtimeInstance = runtimeSupplier.get();
+            if (current.runtimeInstance != runtimeInstance) {
+                return reload(runtimeInstance);
+            }
+            return current;
+        }
+
+        /**
+         * Parses the inline script into an initialized node tree, so that
+         * {@link #merge(Map, Context, Writer)} only has to render it.
+         */
+        private static Template parseTemplate(final RuntimeInstance runtimeInstance, final String name, final String script) {
+            final SimpleNode document;
+            try {
+                document = runtimeInstance.parse(new StringReader(script), name);
+            } catch (final ParseException e) {
+                throw new ParseErrorException(e, name);
+            }
+            final Template template = new Template();
+            template.setRuntimeServices(runtimeInstance);
+            template.setName(name);
+            template.setData(document);
+            template.initDocument();
+            return template;
+        }
+
+        public String getCacheName() {
+            return cacheName;
+        }
+
+        public String getStoredId() {
+            return storedId;
+        }
+
+        /**
+         * Removes the source of a "##cache" script from the resource loader, unless another
+         * template with the same name has put it since.
+         */
+        void removeSource() {
+            if (cacheName != null) {
+                resourceLoader.removeSource(cacheName, sourceEntry);
+            }
+        }
+
+        /**
+         * @return the expected output length in chars with some headroom
+         */
+        public int getOutputSizeEstimate() {
+            final int estimate = outputSizeEstimate;
+            return estimate + (estimate >> 2);
+        }
+
+        public void updateOutputSizeEstimate(final int length) {
+            outputSizeEstimate = nextEstimate(outputSizeEstimate, length);
+        }
+
+        /**
+         * @return the expected output size in UTF-8 bytes with some headroom
+         */
+        public int getOutputBytesEstimate() {
+            final int estimate = outputBytesEstimate;
+            return estimate + (estimate >> 2);
+        }
+
+        public void updateOutputBytesEstimate(final int bytes) {
+            outputBytesEstimate = nextEstimate(outputBytesEstimate, bytes);
+        }
+
+        private static int nextEstimate(final int estimate, final int value) {
+            return estimate == 0 ? value : estimate + ((value - estimate) >> 3);
+        }
+
+        /**
+         * @return the root names of references in the template, or null if the template
+         *         uses directives which may render other templates, such as macro calls or #parse
+         */
+        public Set<String> getReferenceNames() {
+            final Set<String> names = new HashSet<>();
+            return collectReferenceNames((Node) compiled.template.getData(), names) ? names : null;
+        }
+
+        private static boolean collectReferenceNames(final Node node, final Set<String> names) {
+            if (node instanceof ASTReference) {
+                names.add(((ASTReference) node).getRootString());
+            } else if (node instanceof MacroInliner.ArgumentNode) {
+                return collectReferenceNames(((MacroInliner.ArgumentNode) node).getArgument(), names);
+            } else if (node instanceof ASTDirective && !LOCAL_DIRECTIVES.contains(((ASTDirective) node).getDirectiveName())) {
+                return false;
+            }
+            for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+                if (!collectReferenceNames(node.jjtGetChild(i), names)) {
+                    return false;
                 }
+            }
+            return true;
+        }
 
-                template = AccessController.doPrivileged((PrivilegedAction<Template>) () -> {
-                    return velocityEngine.getTemplate(templateFile.getName());
-                });
-            } else {
-                this.script = script;
+        /**
+         * @param params the script params, which disable the specialized tree if they shadow a folded name
+         */
+        public void merge(final Map<String, Object> params, final Context context, final Writer writer) {
+            final Template target = getTemplate(params);
+            AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+                target.merge(context, writer);
+                return null;
+            });
+        }
+
+        private Template getTemplate(final Map<String, Object> params) {
+            final Compiled base = getCompiled();
+            if (contextProps == null) {
+                return base.template;
+            }
+            // a stale specialization is replaced by the reload listener, so renders never parse
+            final Specialization current = specialization;
+            if (current.template == null || !current.isCurrent(base)) {
+                return base.template;
             }
+            for (final String foldedName : current.foldedNames) {
+                if (params.containsKey(foldedName)) {
+                    return base.template;
+                }
+            }
+            return current.template;
         }
 
-        public File getTemplateFile() {
-            return templateFile;
+        /**
+         * Specializes the template again if the reloaded properties were folded into it.
+         *
+         * @param properties the reloaded properties
+         */
+        void respecialize(final ContextProperties properties) {
+            final Specialization current = specialization;
+            if (contextProps != null && current != null && current.dependsOn(properties)) {
+                specialize(compiled);
+            }
         }
 
-        public void merge(final Context context, final Writer writer) {
-            if (script != null) {
-                final String logTag = Integer.toString(script.hashCode());
-                AccessController.doPrivileged((PrivilegedAction<Boolean>) () -> {
-                    return velocityEngine.evaluate(context, writer, logTag, script);
-                });
-            } else {
-                AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
-                    template.merge(context, writer);
-                    return null;
-                });
+        /**
+         * Parses the script again and folds the current context property values into it, if the compiled
+         * tree has anything to fold. The compiled tree is kept as is for renders which cannot use the folded one.
+         */
+        private synchronized Specialization specialize(final Compiled base) {
+            final Specialization current = specialization;
+            if (current != null && current.isCurrent(base)) {
+                return current;
+            }
+            if (!TemplateSpecializer.isFoldable(name, (SimpleNode) base.template.getData(), contextProps)) {
+                final Specialization next = new Specialization(base, null, Collections.emptySet(), new ContextProperties[0], new long[0]);
+                specialization = next;
+                return next;
+            }
+            final Specialization next = AccessController.doPrivileged((PrivilegedAction<Specialization>) () -> {
+                // read the reload counts first, so that a reload during folding makes the result stale
+                final Map<String, Long> reloadCounts = new HashMap<>();
+                for (final Map.Entry<String, ContextProperties> entry : contextProps.entrySet()) {
+                    reloadCounts.put(entry.getKey(), entry.getValue().getReloadCount());
+                }
+                final Template specialized = inlineMacros(base.runtimeInstance, parseTemplate(base.runtimeInstance, name, script));
+                final Set<String> foldedNames = TemplateSpecializer.specialize(name, (SimpleNode) specialized.getData(), contextProps);
+                final ContextProperties[] foldedProps = new ContextProperties[foldedNames.size()];
+                final long[] foldedCounts = new long[foldedNames.size()];
+                int i = 0;
+                for (final String foldedName : foldedNames) {
+                    foldedProps[i] = contextProps.get(foldedName);
+                    foldedCounts[i] = reloadCounts.get(foldedName);
+                    i++;
+                }
+                return new Specialization(base, foldedNames.isEmpty() ? null : specialized, foldedNames, foldedProps, foldedCounts);
+            });
+            specialization = next;
+            return next;
+        }
+    }
+
+    /**
+     * A template parsed by a runtime.
+     */
+    private static class Compiled {
+        private final RuntimeInstance runtimeInstance;
+
+        private final Template template;
+
+        Compiled(final RuntimeInstance runtimeInstance, final Template template) {
+            this.runtimeInstance = runtimeInstance;
+            this.template = template;
+        }
+    }
+
+    /**
+     * A template tree with context property values folded in, valid while the base template is current
+     * and the folded properties have not been reloaded since.
+     */
+    private static class Specialization {
+        private final Compiled base;
+
+        /** The specialized template, or null if nothing was folded. */
+        private final Template template;
+
+        private final Set<String> foldedNames;
+
+        /** The properties of the folded names. */
+        private final ContextProperties[] foldedProps;
+
+        /** The reload counts of the folded properties when they were folded. */
+        private final long[] foldedCounts;
+
+        Specialization(final Compiled base, final Template template, final Set<String> foldedNames,
+                final ContextProperties[] foldedProps, final long[] foldedCounts) {
+            this.base = base;
+            this.template = template;
+            this.foldedNames = foldedNames;
+            this.foldedProps = foldedProps;
+            this.foldedCounts = foldedCounts;
+        }
+
+        boolean isCurrent(final Compiled compiled) {
+            if (base != compiled) {
+                return false;
+            }
+            for (int i = 0; i < foldedProps.length; i++) {
+                if (foldedProps[i].getReloadCount() != foldedCounts[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean dependsOn(final ContextProperties properties) {
+            for (final ContextProperties foldedProp : foldedProps) {
+                if (foldedProp == properties) {
+                    return true;
+                }
             }
+            return false;
         }
     }
 
-    private static class VelocityExecutableScript extends TemplateScript {
+    /**
+     * Renders the template into the writer within the render limits, and records the render statistics.
+     * The output is charged to the circuit breaker by the writer, which is acquired with it.
+     *
+     * @param storedId the stored script id, or null for an inline script
+     * @param outputBytes the UTF-8 size of the output written into the writer, for the statistics
+     */
+    private void merge(final VelocityScriptTemplate template, final String scriptId, final String storedId,
+            final Map<String, Object> params, final Writer writer, final IntSupplier outputBytes) {
+        final LayeredContext velocityContext = LayeredContext.acquire(params, contextPropMap);
+        Writer out = writer;
+        if (maxRenderTimeNanos > 0 || maxRenderVisits > 0 || maxRenderOutput > 0) {
+            final RenderBudget budget = new RenderBudget(writer, maxRenderTimeNanos, maxRenderVisits, maxRenderOutput);
+            if (budget.checksVisits()) {
+                velocityContext.setBudget(budget);
+            }
+            if (budget.checksOutput()) {
+                out = budget;
+            }
+        }
+        try {
+            final long startTime = System.nanoTime();
+            template.merge(params, velocityContext, out);
+            final long took = System.nanoTime() - startTime;
+            final int bytes = outputBytes.getAsInt();
+            totalStats.onRender(took, bytes);
+            getScriptStats(storedId).onRender(took, bytes);
+            slowLog.onRender(scriptId, took, bytes, params);
+        } catch (final CircuitBreakingException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new ElasticsearchException("Could not execute query template: ", e);
+        } finally {
+            velocityContext.release();
+        }
+    }
+
+    private class VelocityExecutableScript extends TemplateScript {
         /** Compiled template object. */
         private final VelocityScriptTemplate context;
 
+        private final String scriptId;
+
+        private final String storedId;
+
+        /** Context properties a "##memo" template depends on, or null if the output is not memoized. */
+        private final ContextProperties[] memoDependencies;
+
         /**
          * @param template the compiled template object
+         * @param scriptId the script id, or the source hash of an inline script
+         * @param storedId the stored script id, or null for an inline script
          * @param vars the parameters to fill above object with
+         * @param memoDependencies the context properties the memoized output depends on, or null
          **/
-        public VelocityExecutableScript(final VelocityScriptTemplate context, final Map<String, Object> vars) {
+        public VelocityExecutableScript(final VelocityScriptTemplate context, final String scriptId, final String storedId,
+                final Map<String, Object> vars, final ContextProperties[] memoDependencies) {
             super(vars == null ? Collections.emptyMap() : vars);
             this.context = context;
+            this.scriptId = scriptId;
+            this.storedId = storedId;
+            this.memoDependencies = memoDependencies;
         }
 
         @Override
         public String execute() {
-            try (final StringWriter writer = new StringWriter()) {
-                context.merge(new VelocityContext(getParams()), writer);
-                writer.flush();
+            OutputCache.Key memoKey = null;
+            if (memoDependencies != null) {
+                memoKey = OutputCache.newKey(context, getParams(), memoDependencies);
+                final String content = outputCache.get(memoKey);
+                if (content != null) {
+                    return content;
+                }
+            }
+
+            final ReusableStringWriter writer = ReusableStringWriter.acquire(context.getOutputSizeEstimate(), circuitBreaker);
+            try {
+                merge(context, scriptId, storedId, getParams(), writer, writer::utf8Length);
+                context.updateOutputSizeEstimate(writer.length());
 
                 final String content = writer.toString();
                 if (logger.isDebugEnabled()) {
                     logger.debug("output: {}", content);
                 }
+                if (memoKey != null) {
+                    outputCache.put(memoKey, content);
+                }
                 return content;
-            } catch (final Exception e) {
-                throw new ElasticsearchException("Could not execute query template: ", e);
+            } finally {
+                writer.release();
+            }
+        }
+    }
+
+    private class VelocityExecutableBytesScript extends VelocityBytesScript {
+        private final VelocityScriptTemplate context;
+
+        private final String scriptId;
+
+        private final String storedId;
+
+        private final ContextProperties[] memoDependencies;
+
+        public VelocityExecutableBytesScript(final VelocityScriptTemplate context, final String scriptId, final String storedId,
+                final Map<String, Object> vars, final ContextProperties[] memoDependencies) {
+            super(vars == null ? Collections.emptyMap() : vars);
+            this.context = context;
+            this.scriptId = scriptId;
+            this.storedId = storedId;
+            this.memoDependencies = memoDependencies;
+        }
+
+        @Override
+        public BytesReference execute() {
+            OutputCache.Key memoKey = null;
+            if (memoDependencies != null) {
+                memoKey = OutputCache.newKey(context, getParams(), memoDependencies);
+                final String content = outputCache.get(memoKey);
+                if (content != null) {
+                    return new BytesArray(content.getBytes(outputCharset));
+                }
+            }
+
+            final BytesReference content;
+            if (StandardCharsets.UTF_8.equals(outputCharset)) {
+                final ReusableBytesWriter writer = ReusableBytesWriter.acquire(context.getOutputBytesEstimate(), circuitBreaker);
+                try {
+                    merge(context, scriptId, storedId, getParams(), writer, writer::length);
+                    context.updateOutputBytesEstimate(writer.length());
+                    content = writer.toBytesReference();
+                } finally {
+                    writer.release();
+                }
+            } else {
+                final ReusableStringWriter writer = ReusableStringWriter.acquire(context.getOutputSizeEstimate(), circuitBreaker);
+                try {
+                    merge(context, scriptId, storedId, getParams(), writer, writer::utf8Length);
+                    context.updateOutputSizeEstimate(writer.length());
+                    final ByteBuffer buffer = outputCharset.encode(CharBuffer.wrap(writer.getBuffer(), 0, writer.length()));
+                    content = new BytesArray(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } finally {
+                    writer.release();
+                }
+            }
+            if (memoKey != null) {
+                outputCache.put(memoKey, new String(BytesReference.toBytes(content), outputCharset));
             }
+            return content;
         }
     }
 
     @Override
     public Set<ScriptContext<?>> getSupportedContexts() {
-        return Collections.singleton(TemplateScript.CONTEXT);
+        return new HashSet<>(Arrays.asList(TemplateScript.CONTEXT, VelocityBytesScript.CONTEXT));
     }
 }
@@ -0,0 +1,262 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+
+/**
+ * Logs compiles and renders slower than the thresholds, like the search slowlog.
+ * A threshold of -1 disables the level. Thresholds of a script id override the
+ * node-level ones for the levels they set.
+ */
+public class VelocitySlowLog {
+
+    private static final String PREFIX = "script.velocity.slowlog.threshold.";
+
+    private static final String SCRIPTS_PREFIX = "script.velocity.slowlog.scripts.";
+
+    /** Keys in the scripts group: {@code <script id>.threshold.<render|compile>.<level>}. */
+    private static final Pattern SCRIPT_THRESHOLD_KEY = Pattern.compile("(.+)\\.threshold\\.(render|compile)\\.(warn|info|debug|trace)");
+
+    public static final Setting<TimeValue> SETTING_RENDER_WARN = thresholdSetting("render.warn");
+
+    public static final Setting<TimeValue> SETTING_RENDER_INFO = thresholdSetting("render.info");
+
+    public static final Setting<TimeValue> SETTING_RENDER_DEBUG = thresholdSetting("render.debug");
+
+    public static final Setting<TimeValue> SETTING_RENDER_TRACE = thresholdSetting("render.trace");
+
+    public static final Setting<TimeValue> SETTING_COMPILE_WARN = thresholdSetting("compile.warn");
+
+    public static final Setting<TimeValue> SETTING_COMPILE_INFO = thresholdSetting("compile.info");
+
+    public static final Setting<TimeValue> SETTING_COMPILE_DEBUG = thresholdSetting("compile.debug");
+
+    public static final Setting<TimeValue> SETTING_COMPILE_TRACE = thresholdSetting("compile.trace");
+
+    /** Per-script thresholds, such as script.velocity.slowlog.scripts.my_script.threshold.render.warn: 100ms. */
+    public static final Setting<Settings> SETTING_SCRIPTS =
+            Setting.groupSetting(SCRIPTS_PREFIX, VelocitySlowLog::parseScriptThresholds, Property.NodeScope, Property.Dynamic);
+
+    /** Max length of the params in a log line. */
+    private static final int MAX_PARAMS_LENGTH = 256;
+
+    private static final Logger renderLogger = LogManager.getLogger("org.codelibs.elasticsearch.velocity.slowlog.render");
+
+    private static final Logger compileLogger = LogManager.getLogger("org.codelibs.elasticsearch.velocity.slowlog.compile");
+
+    private final Thresholds renderThresholds = new Thresholds();
+
+    private final Thresholds compileThresholds = new Thresholds();
+
+    private volatile Map<String, ScriptThresholds> scriptThresholds;
+
+    public VelocitySlowLog(final Settings settings) {
+        renderThresholds.set(SETTING_RENDER_WARN.get(settings), SETTING_RENDER_INFO.get(settings), SETTING_RENDER_DEBUG.get(settings),
+                SETTING_RENDER_TRACE.get(settings));
+        compileThresholds.set(SETTING_COMPILE_WARN.get(settings), SETTING_COMPILE_INFO.get(settings),
+                SETTING_COMPILE_DEBUG.get(settings), SETTING_COMPILE_TRACE.get(settings));
+        setScriptThresholds(SETTING_SCRIPTS.get(settings));
+    }
+
+    private static Setting<TimeValue> thresholdSetting(final String key) {
+        return Setting.timeSetting(PREFIX + key, TimeValue.MINUS_ONE, TimeValue.MINUS_ONE, Property.NodeScope, Property.Dynamic);
+    }
+
+    public static List<Setting<?>> getSettings() {
+        return Arrays.asList(SETTING_RENDER_WARN, SETTING_RENDER_INFO, SETTING_RENDER_DEBUG, SETTING_RENDER_TRACE,
+                SETTING_COMPILE_WARN, SETTING_COMPILE_INFO, SETTING_COMPILE_DEBUG, SETTING_COMPILE_TRACE, SETTING_SCRIPTS);
+    }
+
+    /**
+     * @return the thresholds by script id
+     * @throws IllegalArgumentException if a key or a value is invalid
+     */
+    private static Map<String, ScriptThresholds> parseScriptThresholds(final Settings settings) {
+        final Map<String, ScriptThresholds> thresholds = new HashMap<>();
+        for (final String key : settings.keySet()) {
+            final Matcher matcher = SCRIPT_THRESHOLD_KEY.matcher(key);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("unknown slowlog setting [" + SCRIPTS_PREFIX + key
+                        + "], expected [" + SCRIPTS_PREFIX + "<script id>.threshold.<render|compile>.<warn|info|debug|trace>]");
+            }
+            final TimeValue value = TimeValue.parseTimeValue(settings.get(key), SCRIPTS_PREFIX + key);
+            if (value.nanos() < -1) {
+                throw new IllegalArgumentException("failed to parse value [" + settings.get(key) + "] for setting [" + SCRIPTS_PREFIX
+                        + key + "], must be >= [-1]");
+            }
+            final ScriptThresholds scriptThreshold = thresholds.computeIfAbsent(matcher.group(1), k -> new ScriptThresholds());
+            ("render".equals(matcher.group(2)) ? scriptThreshold.render : scriptThreshold.compile).set(matcher.group(3), value.nanos());
+        }
+        return thresholds;
+    }
+
+    private void setScriptThresholds(final Settings settings) {
+        final Map<String, ScriptThresholds> thresholds = parseScriptThresholds(settings);
+        scriptThresholds = thresholds.isEmpty() ? Collections.emptyMap() : thresholds;
+    }
+
+    public void setClusterSettings(final ClusterSettings clusterSettings) {
+        clusterSettings.addSettingsUpdateConsumer(SETTING_RENDER_WARN, v -> renderThresholds.warn = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_RENDER_INFO, v -> renderThresholds.info = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_RENDER_DEBUG, v -> renderThresholds.debug = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_RENDER_TRACE, v -> renderThresholds.trace = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_COMPILE_WARN, v -> compileThresholds.warn = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_COMPILE_INFO, v -> compileThresholds.info = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_COMPILE_DEBUG, v -> compileThresholds.debug = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_COMPILE_TRACE, v -> compileThresholds.trace = v.nanos());
+        clusterSettings.addSettingsUpdateConsumer(SETTING_SCRIPTS, this::setScriptThresholds);
+    }
+
+    /**
+     * @param scriptId the script id, or the source hash of an inline script
+     * @param tookNanos the render time
+     * @param outputLength the UTF-8 size of the output
+     * @param params the script params
+     */
+    public void onRender(final String scriptId, final long tookNanos, final int outputLength, final Map<String, Object> params) {
+        final Level level = getRenderLevel(scriptId, tookNanos);
+        if (level != null) {
+            renderLogger.log(level, "took[{}], took_millis[{}], script[{}], output_size[{}], params[{}]", TimeValue.timeValueNanos(tookNanos),
+                    TimeUnit.NANOSECONDS.toMillis(tookNanos), scriptId, outputLength, summarize(params));
+        }
+    }
+
+    /**
+     * @param scriptId the script id, or the source hash of an inline script
+     * @param tookNanos the compile time
+     * @param sourceLength the source length
+     */
+    public void onCompile(final String scriptId, final long tookNanos, final int sourceLength) {
+        final Level level = getCompileLevel(scriptId, tookNanos);
+        if (level != null) {
+            compileLogger.log(level, "took[{}], took_millis[{}], script[{}], source_size[{}]", TimeValue.timeValueNanos(tookNanos),
+                    TimeUnit.NANOSECONDS.toMillis(tookNanos), scriptId, sourceLength);
+        }
+    }
+
+    Level getRenderLevel(final String scriptId, final long tookNanos) {
+        final ScriptThresholds thresholds = getScriptThresholds(scriptId);
+        return thresholds != null ? thresholds.render.getLevel(tookNanos, renderThresholds) : renderThresholds.getLevel(tookNanos);
+    }
+
+    Level getCompileLevel(final String scriptId, final long tookNanos) {
+        final ScriptThresholds thresholds = getScriptThresholds(scriptId);
+        return thresholds != null ? thresholds.compile.getLevel(tookNanos, compileThresholds) : compileThresholds.getLevel(tookNanos);
+    }
+
+    private ScriptThresholds getScriptThresholds(final String scriptId) {
+        final Map<String, ScriptThresholds> thresholds = scriptThresholds;
+        return thresholds.isEmpty() ? null : thresholds.get(scriptId);
+    }
+
+    private static String summarize(final Map<String, Object> params) {
+        final String value = String.valueOf(params);
+        if (value.length() > MAX_PARAMS_LENGTH) {
+            return value.substring(0, MAX_PARAMS_LENGTH) + "...";
+        }
+        return value;
+    }
+
+    private static class Thresholds {
+        /** A level of script thresholds which uses the node-level threshold. */
+        static final long UNSET = -2;
+
+        volatile long warn;
+
+        volatile long info;
+
+        volatile long debug;
+
+        volatile long trace;
+
+        Thresholds() {
+            this(-1);
+        }
+
+        Thresholds(final long initialValue) {
+            warn = initialValue;
+            info = initialValue;
+            debug = initialValue;
+            trace = initialValue;
+        }
+
+        void set(final TimeValue warn, final TimeValue info, final TimeValue debug, final TimeValue trace) {
+            this.warn = warn.nanos();
+            this.info = info.nanos();
+            this.debug = debug.nanos();
+            this.trace = trace.nanos();
+        }
+
+        void set(final String level, final long nanos) {
+            switch (level) {
+            case "warn":
+                warn = nanos;
+                break;
+            case "info":
+                info = nanos;
+                break;
+            case "debug":
+                debug = nanos;
+                break;
+            case "trace":
+                trace = nanos;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown slowlog level [" + level + "]");
+            }
+        }
+
+        /**
+         * @return the most severe level whose threshold is crossed, or null
+         */
+        Level getLevel(final long tookNanos) {
+            return getLevel(tookNanos, warn, info, debug, trace);
+        }
+
+        /**
+         * @param fallback the thresholds of the levels which are unset
+         * @return the most severe level whose threshold is crossed, or null
+         */
+        Level getLevel(final long tookNanos, final Thresholds fallback) {
+            return getLevel(tookNanos, warn != UNSET ? warn : fallback.warn, info != UNSET ? info : fallback.info,
+                    debug != UNSET ? debug : fallback.debug, trace != UNSET ? trace : fallback.trace);
+        }
+
+        private static Level getLevel(final long tookNanos, final long warn, final long info, final long debug, final long trace) {
+            if (warn >= 0 && tookNanos > warn) {
+                return Level.WARN;
+            } else if (info >= 0 && tookNanos > info) {
+                return Level.INFO;
+            } else if (debug >= 0 && tookNanos > debug) {
+                return Level.DEBUG;
+            } else if (trace >= 0 && tookNanos > trace) {
+                return Level.TRACE;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Thresholds of a script id, unset unless configured.
+     */
+    private static class ScriptThresholds {
+        final Thresholds render = new Thresholds(Thresholds.UNSET);
+
+        final Thresholds compile = new Thresholds(Thresholds.UNSET);
+    }
+}
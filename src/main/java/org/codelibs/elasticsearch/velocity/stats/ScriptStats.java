@@ -0,0 +1,107 @@
+package org.codelibs.elasticsearch.velocity.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Point-in-time compile and render statistics.
+ */
+public class ScriptStats implements Writeable, ToXContentFragment {
+
+    private final long compileCount;
+
+    private final long compileTimeInNanos;
+
+    private final long renderCount;
+
+    private final long renderTimeInNanos;
+
+    /** Total UTF-8 size of the outputs. */
+    private final long outputBytes;
+
+    private final long[] latencyHistogram;
+
+    public ScriptStats(final long compileCount, final long compileTimeInNanos, final long renderCount, final long renderTimeInNanos,
+            final long outputBytes, final long[] latencyHistogram) {
+        this.compileCount = compileCount;
+        this.compileTimeInNanos = compileTimeInNanos;
+        this.renderCount = renderCount;
+        this.renderTimeInNanos = renderTimeInNanos;
+        this.outputBytes = outputBytes;
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public ScriptStats(final StreamInput in) throws IOException {
+        compileCount = in.readVLong();
+        compileTimeInNanos = in.readVLong();
+        renderCount = in.readVLong();
+        renderTimeInNanos = in.readVLong();
+        outputBytes = in.readVLong();
+        latencyHistogram = in.readLongArray();
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        out.writeVLong(compileCount);
+        out.writeVLong(compileTimeInNanos);
+        out.writeVLong(renderCount);
+        out.writeVLong(renderTimeInNanos);
+        out.writeVLong(outputBytes);
+        out.writeLongArray(latencyHistogram);
+    }
+
+    public long getCompileCount() {
+        return compileCount;
+    }
+
+    public long getCompileTimeInNanos() {
+        return compileTimeInNanos;
+    }
+
+    public long getRenderCount() {
+        return renderCount;
+    }
+
+    public long getRenderTimeInNanos() {
+        return renderTimeInNanos;
+    }
+
+    public long getOutputSizeInBytes() {
+        return outputBytes;
+    }
+
+    public long[] getLatencyHistogram() {
+        return latencyHistogram;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        builder.startObject("compile");
+        builder.field("count", compileCount);
+        builder.humanReadableField("time_in_millis", "time", TimeValue.timeValueNanos(compileTimeInNanos));
+        builder.endObject();
+        builder.startObject("render");
+        builder.field("count", renderCount);
+        builder.humanReadableField("time_in_millis", "time", TimeValue.timeValueNanos(renderTimeInNanos));
+        builder.humanReadableField("output_size_in_bytes", "output_size", new ByteSizeValue(outputBytes));
+        builder.startArray("latency_histogram");
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            builder.startObject();
+            if (i < StatsCounter.LATENCY_BOUNDS.length) {
+                builder.field("lt", TimeValue.timeValueNanos(StatsCounter.LATENCY_BOUNDS[i]).toString());
+            }
+            builder.field("count", latencyHistogram[i]);
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+}
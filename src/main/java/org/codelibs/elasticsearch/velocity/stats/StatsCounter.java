@@ -0,0 +1,61 @@
+package org.codelibs.elasticsearch.velocity.stats;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compile and render counters, updated without locks by search threads.
+ */
+public class StatsCounter {
+
+    /** Upper bounds of the render latency buckets in nanoseconds; the last bucket is unbounded. */
+    static final long[] LATENCY_BOUNDS = { TimeUnit.MICROSECONDS.toNanos(100), TimeUnit.MICROSECONDS.toNanos(500),
+            TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(500) };
+
+    private final LongAdder compileCount = new LongAdder();
+
+    private final LongAdder compileTime = new LongAdder();
+
+    private final LongAdder renderCount = new LongAdder();
+
+    private final LongAdder renderTime = new LongAdder();
+
+    private final LongAdder outputBytes = new LongAdder();
+
+    private final LongAdder[] latencyHistogram = new LongAdder[LATENCY_BOUNDS.length + 1];
+
+    public StatsCounter() {
+        for (int i = 0; i < latencyHistogram.length; i++) {
+            latencyHistogram[i] = new LongAdder();
+        }
+    }
+
+    public void onCompile(final long tookInNanos) {
+        compileCount.increment();
+        compileTime.add(tookInNanos);
+    }
+
+    /**
+     * @param outputBytes the UTF-8 size of the output
+     */
+    public void onRender(final long tookInNanos, final int outputBytes) {
+        renderCount.increment();
+        renderTime.add(tookInNanos);
+        this.outputBytes.add(outputBytes);
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && tookInNanos >= LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latencyHistogram[bucket].increment();
+    }
+
+    public ScriptStats stats() {
+        final long[] histogram = new long[latencyHistogram.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = latencyHistogram[i].sum();
+        }
+        return new ScriptStats(compileCount.sum(), compileTime.sum(), renderCount.sum(), renderTime.sum(), outputBytes.sum(),
+                histogram);
+    }
+}
@@ -0,0 +1,159 @@
+package org.codelibs.elasticsearch.velocity.stats;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Velocity engine statistics of a node.
+ */
+public class VelocityStats implements Writeable, ToXContentFragment {
+
+    private final ScriptStats total;
+
+    private final long cacheSize;
+
+    private final long cacheHits;
+
+    private final long cacheMisses;
+
+    private final long cacheEvictions;
+
+    private final long outputCacheSize;
+
+    private final long outputCacheHits;
+
+    private final long outputCacheMisses;
+
+    private final long outputCacheEvictions;
+
+    private final Map<String, Long> reloads;
+
+    private final Map<String, ScriptStats> scripts;
+
+    public VelocityStats(final ScriptStats total, final long cacheSize, final long cacheHits, final long cacheMisses,
+            final long cacheEvictions, final long outputCacheSize, final long outputCacheHits, final long outputCacheMisses,
+            final long outputCacheEvictions, final Map<String, Long> reloads, final Map<String, ScriptStats> scripts) {
+        this.total = total;
+        this.cacheSize = cacheSize;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+        this.cacheEvictions = cacheEvictions;
+        this.outputCacheSize = outputCacheSize;
+        this.outputCacheHits = outputCacheHits;
+        this.outputCacheMisses = outputCacheMisses;
+        this.outputCacheEvictions = outputCacheEvictions;
+        this.reloads = reloads;
+        this.scripts = scripts;
+    }
+
+    public VelocityStats(final StreamInput in) throws IOException {
+        total = new ScriptStats(in);
+        cacheSize = in.readVLong();
+        cacheHits = in.readVLong();
+        cacheMisses = in.readVLong();
+        cacheEvictions = in.readVLong();
+        outputCacheSize = in.readVLong();
+        outputCacheHits = in.readVLong();
+        outputCacheMisses = in.readVLong();
+        outputCacheEvictions = in.readVLong();
+        reloads = in.readMap(StreamInput::readString, StreamInput::readVLong);
+        scripts = in.readMap(StreamInput::readString, ScriptStats::new);
+    }
+
+    @Override
+    public void writeTo(final StreamOutput out) throws IOException {
+        total.writeTo(out);
+        out.writeVLong(cacheSize);
+        out.writeVLong(cacheHits);
+        out.writeVLong(cacheMisses);
+        out.writeVLong(cacheEvictions);
+        out.writeVLong(outputCacheSize);
+        out.writeVLong(outputCacheHits);
+        out.writeVLong(outputCacheMisses);
+        out.writeVLong(outputCacheEvictions);
+        out.writeMap(reloads, StreamOutput::writeString, StreamOutput::writeVLong);
+        out.writeMap(scripts, StreamOutput::writeString, (o, v) -> v.writeTo(o));
+    }
+
+    public ScriptStats getTotal() {
+        return total;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    public long getCacheEvictions() {
+        return cacheEvictions;
+    }
+
+    public long getOutputCacheSize() {
+        return outputCacheSize;
+    }
+
+    public long getOutputCacheHits() {
+        return outputCacheHits;
+    }
+
+    public long getOutputCacheMisses() {
+        return outputCacheMisses;
+    }
+
+    public long getOutputCacheEvictions() {
+        return outputCacheEvictions;
+    }
+
+    public Map<String, Long> getReloads() {
+        return reloads;
+    }
+
+    public Map<String, ScriptStats> getScripts() {
+        return scripts;
+    }
+
+    @Override
+    public XContentBuilder toXContent(final XContentBuilder builder, final Params params) throws IOException {
+        total.toXContent(builder, params);
+        builder.startObject("template_cache");
+        builder.field("size", cacheSize);
+        builder.field("hits", cacheHits);
+        builder.field("misses", cacheMisses);
+        builder.field("evictions", cacheEvictions);
+        builder.endObject();
+        builder.startObject("output_cache");
+        builder.field("size", outputCacheSize);
+        builder.field("hits", outputCacheHits);
+        builder.field("misses", outputCacheMisses);
+        builder.field("evictions", outputCacheEvictions);
+        builder.endObject();
+        builder.startObject("context_props");
+        for (final Map.Entry<String, Long> entry : reloads.entrySet()) {
+            builder.startObject(entry.getKey());
+            builder.field("reloads", entry.getValue());
+            builder.endObject();
+        }
+        builder.endObject();
+        builder.startObject("scripts");
+        for (final Map.Entry<String, ScriptStats> entry : scripts.entrySet()) {
+            builder.startObject(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
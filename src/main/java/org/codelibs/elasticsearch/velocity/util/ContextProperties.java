@@ -11,33 +11,63 @@ import java.io.Reader;
 import java.io.Writer;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.InvalidPropertiesFormatException;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.elasticsearch.ElasticsearchException;
-
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.threadpool.Scheduler.Cancellable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Read-only properties backed by a file. Readers see an immutable snapshot
+ * which is replaced when a background task finds the file modified.
+ */
 public class ContextProperties extends Properties {
 
     private static final long serialVersionUID = 1L;
 
-    public long checkInterval = 5000L;
+    private static final Logger logger = LogManager.getLogger(ContextProperties.class);
 
-    protected volatile long lastChecked = 0L;
+    /** Lower bound of the interval between modification checks. */
+    private static final long MIN_CHECK_INTERVAL = 1000L;
+
+    public long checkInterval = 5000L;
 
     protected volatile long lastModified = 0L;
 
     protected volatile File propertiesFile;
 
-    protected volatile Properties properties;
+    protected volatile Snapshot snapshot;
+
+    private final AtomicLong reloadCount = new AtomicLong();
+
+    private final transient List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+
+    private transient volatile Cancellable watcher;
 
     public ContextProperties(final File file) {
+        this(file, true);
+    }
+
+    /**
+     * @param file the properties file
+     * @param loadFile false if a subclass loads the file after its initialization
+     */
+    protected ContextProperties(final File file, final boolean loadFile) {
         // check path
         if (file == null) {
             throw new ElasticsearchException("file is null.");
@@ -49,7 +79,9 @@ public class ContextProperties extends Properties {
         } else if (!this.propertiesFile.isFile()) {
             throw new ElasticsearchException(propertiesFile.getAbsolutePath() + " is not a file.");
         }
-        load();
+        if (loadFile) {
+            load();
+        }
     }
 
     public String getName() {
@@ -57,23 +89,12 @@ public class ContextProperties extends Properties {
     }
 
     public boolean isUpdated() {
-        final long now = System.currentTimeMillis();
-        if (now - lastChecked < checkInterval) {
-            lastChecked = now;
-            return false;
-        }
-        lastChecked = now;
-
-        final long timestamp = propertiesFile.lastModified();
-        if (timestamp <= lastModified) {
-            return false;
-        }
-
-        return true;
+        final long timestamp = AccessController.doPrivileged((PrivilegedAction<Long>) () -> propertiesFile.lastModified());
+        return timestamp > lastModified;
     }
 
     public synchronized void load() {
-        properties = AccessController.doPrivileged((PrivilegedAction<Properties>) () -> {
+        final Properties properties = AccessController.doPrivileged((PrivilegedAction<Properties>) () -> {
             final Properties prop = new Properties();
             FileInputStream fis = null;
             try {
@@ -93,52 +114,99 @@ public class ContextProperties extends Properties {
             }
             return prop;
         });
+        snapshot = new Snapshot(properties);
+    }
+
+    /**
+     * Checks the file every checkInterval milliseconds on the generic thread pool
+     * and reloads it when it is modified.
+     *
+     * @param threadPool the thread pool to schedule the check on
+     */
+    public synchronized void startWatching(final ThreadPool threadPool) {
+        if (watcher != null) {
+            return;
+        }
+        final TimeValue interval = TimeValue.timeValueMillis(Math.max(checkInterval, MIN_CHECK_INTERVAL));
+        watcher = threadPool.scheduleWithFixedDelay(() -> {
+            try {
+                if (isUpdated()) {
+                    reload();
+                }
+            } catch (final Exception e) {
+                logger.warn("Failed to reload " + propertiesFile.getAbsolutePath(), e);
+            }
+        }, interval, ThreadPool.Names.GENERIC);
     }
 
-    protected Properties getProperties() {
-        if (isUpdated()) {
-            load();
+    /**
+     * Loads the file again, and notifies the reload listeners on the calling thread.
+     */
+    public void reload() {
+        load();
+        reloadCount.incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reloaded {}", propertiesFile.getAbsolutePath());
         }
-        return properties;
+        notifyReloaded();
     }
 
-    public Set<Object> getAsSet(final Object key) {
-        final String cacheKey = key + ".set";
-        Object value = get(cacheKey);
-        if (value != null) {
-            return (Set<Object>) value;
-        }
+    /**
+     * @param listener called on the reloading thread after the file is reloaded
+     */
+    public void addReloadListener(final Runnable listener) {
+        reloadListeners.add(listener);
+    }
 
-        final Set<Object> set = new HashSet<>();
-        int counter = 0;
-        while ((value = get(key + "." + counter)) != null) {
-            set.add(value);
-            counter++;
+    private void notifyReloaded() {
+        for (final Runnable listener : reloadListeners) {
+            try {
+                listener.run();
+            } catch (final Exception e) {
+                logger.warn("Failed to notify a reload of " + propertiesFile.getAbsolutePath(), e);
+            }
         }
-        put(cacheKey, set);
-        return set;
     }
 
-    public List<Object> getAsList(final Object key) {
-        final String cacheKey = key + ".list";
-        Object value = get(cacheKey);
-        if (value != null) {
-            return (List<Object>) value;
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.cancel();
+            watcher = null;
         }
+    }
 
-        final List<Object> list = new ArrayList<>();
-        int counter = 0;
-        while ((value = get(key + "." + counter)) != null) {
-            list.add(value);
-            counter++;
-        }
-        put(cacheKey, list);
-        return list;
+    /**
+     * @return the number of reloads done by {@link #reload()}
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    protected Map<Object, Object> getProperties() {
+        return snapshot.values;
+    }
+
+    /**
+     * @param key the prefix of "key.0", "key.1", ... entries
+     * @return the immutable set of the values, indexed when the file is loaded
+     */
+    public Set<Object> getAsSet(final Object key) {
+        final Set<Object> set = snapshot.setValues.get(String.valueOf(key));
+        return set != null ? set : Collections.emptySet();
+    }
+
+    /**
+     * @param key the prefix of "key.0", "key.1", ... entries
+     * @return the immutable list of the values, indexed when the file is loaded
+     */
+    public List<Object> getAsList(final Object key) {
+        final List<Object> list = snapshot.listValues.get(String.valueOf(key));
+        return list != null ? list : Collections.emptyList();
     }
 
     @Override
     public void clear() {
-        getProperties().clear();
+        throw new UnsupportedOperationException("Unsupported operation.");
     }
 
     @Override
@@ -150,7 +218,7 @@ public class ContextProperties extends Properties {
 
     @Override
     public boolean contains(final Object value) {
-        return getProperties().contains(value);
+        return getProperties().containsValue(value);
     }
 
     @Override
@@ -165,7 +233,7 @@ public class ContextProperties extends Properties {
 
     @Override
     public Enumeration<Object> elements() {
-        return getProperties().elements();
+        return Collections.enumeration(getProperties().values());
     }
 
     @Override
@@ -185,12 +253,14 @@ public class ContextProperties extends Properties {
 
     @Override
     public String getProperty(final String key, final String defaultValue) {
-        return getProperties().getProperty(key, defaultValue);
+        final String value = getProperty(key);
+        return value == null ? defaultValue : value;
     }
 
     @Override
     public String getProperty(final String key) {
-        return getProperties().getProperty(key);
+        final Object value = getProperties().get(key);
+        return value instanceof String ? (String) value : null;
     }
 
     @Override
@@ -205,7 +275,7 @@ public class ContextProperties extends Properties {
 
     @Override
     public Enumeration<Object> keys() {
-        return getProperties().keys();
+        return Collections.enumeration(getProperties().keySet());
     }
 
     @Override
@@ -215,12 +285,12 @@ public class ContextProperties extends Properties {
 
     @Override
     public void list(final PrintStream out) {
-        getProperties().list(out);
+        toProperties().list(out);
     }
 
     @Override
     public void list(final PrintWriter out) {
-        getProperties().list(out);
+        toProperties().list(out);
     }
 
     @Override
@@ -240,22 +310,22 @@ public class ContextProperties extends Properties {
 
     @Override
     public Enumeration<?> propertyNames() {
-        return getProperties().propertyNames();
+        return Collections.enumeration(getProperties().keySet());
     }
 
     @Override
     public Object put(final Object key, final Object value) {
-        return getProperties().put(key, value);
+        throw new UnsupportedOperationException("Unsupported operation.");
     }
 
     @Override
     public void putAll(final Map<? extends Object, ? extends Object> t) {
-        getProperties().putAll(t);
+        throw new UnsupportedOperationException("Unsupported operation.");
     }
 
     @Override
     public Object remove(final Object key) {
-        return getProperties().remove(key);
+        throw new UnsupportedOperationException("Unsupported operation.");
     }
 
     @Override
@@ -265,7 +335,7 @@ public class ContextProperties extends Properties {
 
     @Override
     public Object setProperty(final String key, final String value) {
-        return getProperties().setProperty(key, value);
+        throw new UnsupportedOperationException("Unsupported operation.");
     }
 
     @Override
@@ -295,7 +365,7 @@ public class ContextProperties extends Properties {
 
     @Override
     public Set<String> stringPropertyNames() {
-        return getProperties().stringPropertyNames();
+        return toProperties().stringPropertyNames();
     }
 
     @Override
@@ -307,4 +377,79 @@ public class ContextProperties extends Properties {
     public Collection<Object> values() {
         return getProperties().values();
     }
+
+    private Properties toProperties() {
+        final Properties properties = new Properties();
+        properties.putAll(getProperties());
+        return properties;
+    }
+
+    /**
+     * Immutable view of the loaded file.
+     */
+    protected static class Snapshot {
+        protected final Map<Object, Object> values;
+
+        /** Values of "key.0", "key.1", ... up to the first missing index, by key. */
+        protected final Map<String, List<Object>> listValues;
+
+        protected final Map<String, Set<Object>> setValues;
+
+        protected Snapshot(final Properties properties) {
+            values = Collections.unmodifiableMap(new HashMap<>(properties));
+
+            final Map<String, Map<Integer, Object>> indexedMap = new HashMap<>();
+            for (final Map.Entry<Object, Object> entry : values.entrySet()) {
+                final String key = entry.getKey().toString();
+                final int pos = key.lastIndexOf('.');
+                if (pos <= 0) {
+                    continue;
+                }
+                final int index = parseIndex(key, pos + 1);
+                if (index >= 0) {
+                    indexedMap.computeIfAbsent(key.substring(0, pos), k -> new HashMap<>()).put(index, entry.getValue());
+                }
+            }
+
+            final Map<String, List<Object>> lists = new HashMap<>();
+            final Map<String, Set<Object>> sets = new HashMap<>();
+            for (final Map.Entry<String, Map<Integer, Object>> entry : indexedMap.entrySet()) {
+                final Map<Integer, Object> valueMap = entry.getValue();
+                int size = 0;
+                while (valueMap.containsKey(size)) {
+                    size++;
+                }
+                if (size == 0) {
+                    continue;
+                }
+                final Object[] array = new Object[size];
+                for (int i = 0; i < size; i++) {
+                    array[i] = valueMap.get(i);
+                }
+                lists.put(entry.getKey(), Collections.unmodifiableList(Arrays.asList(array)));
+                sets.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(Arrays.asList(array))));
+            }
+            listValues = lists;
+            setValues = sets;
+        }
+
+        /**
+         * @return the index written as a plain decimal number from the offset, or -1
+         */
+        static int parseIndex(final String key, final int offset) {
+            final int length = key.length() - offset;
+            if (length <= 0 || length > 9 || (length > 1 && key.charAt(offset) == '0')) {
+                return -1;
+            }
+            int index = 0;
+            for (int i = offset; i < key.length(); i++) {
+                final char c = key.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                index = index * 10 + (c - '0');
+            }
+            return index;
+        }
+    }
 }
@@ -0,0 +1,155 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Context properties served from a memory-mapped index of the file instead of the heap,
+ * for large lookup tables. The index is rebuilt in the index directory when the file is
+ * reloaded, and readers switch to the new mapping at once.
+ */
+public class MappedContextProperties extends ContextProperties {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger logger = LogManager.getLogger(MappedContextProperties.class);
+
+    private static final String INDEX_PREFIX = "ctx_";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    /** Makes index file names unique in the JVM. */
+    private static final AtomicLong INDEX_SEQUENCE = new AtomicLong();
+
+    private final File indexDir;
+
+    private final String indexName;
+
+    private transient volatile MappedIndex index;
+
+    /**
+     * @param file the properties file
+     * @param indexDir the directory to write index files in
+     * @param indexName the name of the index files
+     */
+    public MappedContextProperties(final File file, final File indexDir, final String indexName) {
+        super(file, false);
+        this.indexDir = indexDir;
+        this.indexName = indexName;
+        load();
+    }
+
+    /**
+     * Deletes index files left by a previous process.
+     */
+    public static void deleteIndexFiles(final File dir) {
+        final File[] files = dir.listFiles((d, name) -> name.startsWith(INDEX_PREFIX) && name.endsWith(INDEX_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            if (!file.delete()) {
+                logger.warn("Failed to delete {}.", file.getAbsolutePath());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void load() {
+        final MappedIndex oldIndex = index;
+        index = AccessController.doPrivileged((PrivilegedAction<MappedIndex>) () -> {
+            final File indexFile = new File(indexDir, INDEX_PREFIX + indexName + "_" + INDEX_SEQUENCE.incrementAndGet() + INDEX_SUFFIX);
+            try {
+                final long timestamp = propertiesFile.lastModified();
+                final long startTime = System.nanoTime();
+                MappedIndex.build(propertiesFile, indexFile);
+                final MappedIndex newIndex = MappedIndex.open(indexFile);
+                lastModified = timestamp;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Indexed {} entries of {} into {} in {}ms", newIndex.size(), propertiesFile.getAbsolutePath(),
+                            indexFile.getAbsolutePath(), (System.nanoTime() - startTime) / 1000000L);
+                }
+                return newIndex;
+            } catch (final IOException | RuntimeException e) {
+                if (!indexFile.delete() && indexFile.exists()) {
+                    logger.warn("Failed to delete {}.", indexFile.getAbsolutePath());
+                }
+                throw e instanceof ElasticsearchException ? (ElasticsearchException) e : new ElasticsearchException(e);
+            }
+        });
+        if (oldIndex != null) {
+            // the mapping stays valid for readers of the old index until it is collected
+            AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+                if (!oldIndex.getFile().delete()) {
+                    logger.debug("Failed to delete {}.", oldIndex.getFile().getAbsolutePath());
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    protected Map<Object, Object> getProperties() {
+        return index.asMap();
+    }
+
+    /**
+     * @param key the prefix of "key.0", "key.1", ... entries
+     * @return the set of the values; membership is looked up in the index, and iterating it reads all values
+     */
+    @Override
+    public Set<Object> getAsSet(final Object key) {
+        return index.asSet(String.valueOf(key));
+    }
+
+    /**
+     * @param key the prefix of "key.0", "key.1", ... entries
+     * @return the list of the values, read from the index on access
+     */
+    @Override
+    public List<Object> getAsList(final Object key) {
+        return index.asList(String.valueOf(key));
+    }
+
+    @Override
+    public Object clone() {
+        final MappedContextProperties properties = new MappedContextProperties(propertiesFile, indexDir, indexName);
+        properties.checkInterval = checkInterval;
+        return properties;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof String && index.containsKey((String) key);
+    }
+
+    @Override
+    public Object get(final Object key) {
+        return key instanceof String ? index.get((String) key) : null;
+    }
+
+    @Override
+    public String getProperty(final String key) {
+        return key != null ? index.get(key) : null;
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return index.size() == 0;
+    }
+}
@@ -0,0 +1,529 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.elasticsearch.ElasticsearchException;
+
+/**
+ * Read-only hash index of a properties file, memory-mapped so that lookups read the page cache
+ * instead of the heap. Safe for concurrent readers, as it only uses absolute reads of the buffer.
+ *
+ * The file holds a header, the records and an open addressing table of record offsets.
+ * A record is [hash][type][key length][key][value length][value], where the type is a property
+ * ("key" to its value), a set member ("key" without the index, NUL and a value of "key.0", "key.1", ...)
+ * or a list size ("key" without the index to the number of values).
+ */
+class MappedIndex {
+
+    private static final int MAGIC = 0x564d4349;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /** magic, format version, property count, table offset, table capacity */
+    private static final int HEADER_SIZE = 20;
+
+    private static final byte TYPE_PROPERTY = 0;
+
+    private static final byte TYPE_MEMBER = 1;
+
+    private static final byte TYPE_LIST_SIZE = 2;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final int propertyCount;
+
+    private final int tableOffset;
+
+    private final int tableMask;
+
+    private MappedIndex(final File file, final ByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            throw new ElasticsearchException(file.getAbsolutePath() + " is not a context properties index.");
+        }
+        propertyCount = buffer.getInt(8);
+        tableOffset = buffer.getInt(12);
+        tableMask = buffer.getInt(16) - 1;
+    }
+
+    /**
+     * Builds the index of a properties file. Entries are streamed to the index file,
+     * so the heap only holds an int per entry while building.
+     *
+     * @param source the properties file
+     * @param target the index file to write
+     */
+    static void build(final File source, final File target) throws IOException {
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final RecordWriter writer = new RecordWriter(channel);
+            final Map<String, BitSet> listIndexes = new HashMap<>();
+            final Properties loader = new Properties() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public synchronized Object put(final Object key, final Object value) {
+                    final String name = key.toString();
+                    writer.write(TYPE_PROPERTY, name.getBytes(StandardCharsets.UTF_8), value.toString().getBytes(StandardCharsets.UTF_8));
+                    final int pos = name.lastIndexOf('.');
+                    if (pos > 0) {
+                        final int index = ContextProperties.Snapshot.parseIndex(name, pos + 1);
+                        if (index >= 0) {
+                            listIndexes.computeIfAbsent(name.substring(0, pos), k -> new BitSet()).set(index);
+                        }
+                    }
+                    return null;
+                }
+            };
+            try (InputStream in = new BufferedInputStream(new FileInputStream(source))) {
+                loader.load(in);
+            }
+
+            // properties by key, the later one of duplicated keys
+            final ByteBuffer propertyBuffer = writer.map();
+            final int[] properties = buildTable(propertyBuffer, writer.offsets, writer.count);
+            int propertyCount = 0;
+            for (final int offset : properties) {
+                if (offset == 0) {
+                    continue;
+                }
+                propertyCount++;
+                final String name = readString(propertyBuffer, offset + 9, propertyBuffer.getInt(offset + 5));
+                final int pos = name.lastIndexOf('.');
+                if (pos <= 0) {
+                    continue;
+                }
+                final BitSet indexes = listIndexes.get(name.substring(0, pos));
+                final int index = ContextProperties.Snapshot.parseIndex(name, pos + 1);
+                if (indexes != null && index >= 0 && index < indexes.nextClearBit(0)) {
+                    final byte[] prefix = name.substring(0, pos).getBytes(StandardCharsets.UTF_8);
+                    final int valuePos = offset + 9 + propertyBuffer.getInt(offset + 5);
+                    final byte[] member = new byte[prefix.length + 1 + propertyBuffer.getInt(valuePos)];
+                    System.arraycopy(prefix, 0, member, 0, prefix.length);
+                    read(propertyBuffer, valuePos + 4, member, prefix.length + 1, member.length - prefix.length - 1);
+                    writer.write(TYPE_MEMBER, member, new byte[0]);
+                }
+            }
+            for (final Map.Entry<String, BitSet> entry : listIndexes.entrySet()) {
+                final int size = entry.getValue().nextClearBit(0);
+                if (size > 0) {
+                    writer.write(TYPE_LIST_SIZE, entry.getKey().getBytes(StandardCharsets.UTF_8),
+                            ByteBuffer.allocate(4).putInt(size).array());
+                }
+            }
+
+            final int[] table = buildTable(writer.map(), writer.offsets, writer.count);
+            final int tableOffset = writer.position;
+            final ByteBuffer tableBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            long position = tableOffset;
+            for (final int offset : table) {
+                if (!tableBuffer.hasRemaining()) {
+                    tableBuffer.flip();
+                    position += writeFully(channel, tableBuffer, position);
+                    tableBuffer.clear();
+                }
+                tableBuffer.putInt(offset);
+            }
+            tableBuffer.flip();
+            position += writeFully(channel, tableBuffer, position);
+            if (position > Integer.MAX_VALUE) {
+                throw new ElasticsearchException(source.getAbsolutePath() + " is too large to be indexed.");
+            }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(propertyCount).putInt(tableOffset).putInt(table.length);
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+    }
+
+    /**
+     * @param buffer the mapped records
+     * @param offsets the record offsets, in the order written
+     * @param count the number of records
+     * @return the open addressing table of the offsets, keeping the last record of a key
+     */
+    private static int[] buildTable(final ByteBuffer buffer, final int[] offsets, final int count) {
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        final int mask = capacity - 1;
+        final int[] table = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            final int offset = offsets[i];
+            final int hash = buffer.getInt(offset);
+            for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+                final int current = table[slot];
+                if (current == 0 || buffer.getInt(current) == hash && sameKey(buffer, current, offset)) {
+                    table[slot] = offset;
+                    break;
+                }
+            }
+        }
+        return table;
+    }
+
+    private static boolean sameKey(final ByteBuffer buffer, final int offset1, final int offset2) {
+        final int length = buffer.getInt(offset1 + 5);
+        if (buffer.get(offset1 + 4) != buffer.get(offset2 + 4) || length != buffer.getInt(offset2 + 5)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset1 + 9 + i) != buffer.get(offset2 + 9 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int writeFully(final FileChannel channel, final ByteBuffer src, final long position) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += channel.write(src, position + written);
+        }
+        return written;
+    }
+
+    /**
+     * Maps an index file built by {@link #build(File, File)}.
+     */
+    static MappedIndex open(final File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedIndex(file, buffer);
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    static int hash(final byte type, final byte[] key) {
+        int hash = 0x811c9dc5 ^ type;
+        for (final byte b : key) {
+            hash = (hash ^ b) * 0x01000193;
+        }
+        // spread the low bits used by the table
+        return hash ^ hash >>> 16;
+    }
+
+    /**
+     * @return the offset of the record, or -1
+     */
+    private int find(final byte type, final byte[] key) {
+        final int hash = hash(type, key);
+        for (int slot = hash & tableMask;; slot = (slot + 1) & tableMask) {
+            final int offset = buffer.getInt(tableOffset + slot * 4);
+            if (offset == 0) {
+                return -1;
+            }
+            if (buffer.getInt(offset) == hash && buffer.get(offset + 4) == type && keyEquals(offset, key)) {
+                return offset;
+            }
+        }
+    }
+
+    private boolean keyEquals(final int offset, final byte[] key) {
+        if (buffer.getInt(offset + 5) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + 9 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void read(final ByteBuffer buffer, final int pos, final byte[] dst, final int off, final int length) {
+        final ByteBuffer dup = buffer.duplicate();
+        dup.position(pos);
+        dup.get(dst, off, length);
+    }
+
+    private static String readString(final ByteBuffer buffer, final int pos, final int length) {
+        final byte[] bytes = new byte[length];
+        read(buffer, pos, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readKey(final int offset) {
+        return readString(buffer, offset + 9, buffer.getInt(offset + 5));
+    }
+
+    private String readValue(final int offset) {
+        final int valuePos = offset + 9 + buffer.getInt(offset + 5);
+        return readString(buffer, valuePos + 4, buffer.getInt(valuePos));
+    }
+
+    /**
+     * @return the value of the key, or null
+     */
+    String get(final String key) {
+        final int offset = find(TYPE_PROPERTY, key.getBytes(StandardCharsets.UTF_8));
+        return offset != -1 ? readValue(offset) : null;
+    }
+
+    boolean containsKey(final String key) {
+        return find(TYPE_PROPERTY, key.getBytes(StandardCharsets.UTF_8)) != -1;
+    }
+
+    int size() {
+        return propertyCount;
+    }
+
+    /**
+     * @return true if the value is one of "key.0", "key.1", ... values
+     */
+    boolean containsMember(final String key, final String value) {
+        final byte[] prefix = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        final byte[] member = Arrays.copyOf(prefix, prefix.length + 1 + valueBytes.length);
+        System.arraycopy(valueBytes, 0, member, prefix.length + 1, valueBytes.length);
+        return find(TYPE_MEMBER, member) != -1;
+    }
+
+    /**
+     * @return the number of "key.0", "key.1", ... entries up to the first missing index
+     */
+    int listSize(final String key) {
+        final int offset = find(TYPE_LIST_SIZE, key.getBytes(StandardCharsets.UTF_8));
+        return offset != -1 ? buffer.getInt(offset + 13 + buffer.getInt(offset + 5)) : 0;
+    }
+
+    /**
+     * @return a read-only map of the properties, reading entries from the mapping when iterated
+     */
+    Map<Object, Object> asMap() {
+        return new IndexMap();
+    }
+
+    List<Object> asList(final String key) {
+        return new IndexList(key, listSize(key));
+    }
+
+    Set<Object> asSet(final String key) {
+        return new IndexSet(key);
+    }
+
+    private class IndexMap extends AbstractMap<Object, Object> {
+        @Override
+        public Object get(final Object key) {
+            return key instanceof String ? MappedIndex.this.get((String) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(final Object key) {
+            return key instanceof String && MappedIndex.this.containsKey((String) key);
+        }
+
+        @Override
+        public int size() {
+            return propertyCount;
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<Object, Object>>() {
+                @Override
+                public Iterator<Map.Entry<Object, Object>> iterator() {
+                    return new PropertyIterator();
+                }
+
+                @Override
+                public int size() {
+                    return propertyCount;
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates the properties in the table order.
+     */
+    private class PropertyIterator implements Iterator<Map.Entry<Object, Object>> {
+        private int slot = -1;
+
+        private int next = advance();
+
+        private int advance() {
+            while (++slot <= tableMask) {
+                final int offset = buffer.getInt(tableOffset + slot * 4);
+                if (offset != 0 && buffer.get(offset + 4) == TYPE_PROPERTY) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != -1;
+        }
+
+        @Override
+        public Map.Entry<Object, Object> next() {
+            if (next == -1) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<Object, Object> entry = new AbstractMap.SimpleImmutableEntry<>(readKey(next), readValue(next));
+            next = advance();
+            return entry;
+        }
+    }
+
+    private class IndexList extends AbstractList<Object> implements RandomAccess {
+        private final String key;
+
+        private final int size;
+
+        IndexList(final String key, final int size) {
+            this.key = key;
+            this.size = size;
+        }
+
+        @Override
+        public Object get(final int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return MappedIndex.this.get(key + "." + index);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Set of the list values. Membership is looked up in the index; iterating or
+     * counting the set reads the list.
+     */
+    private class IndexSet extends AbstractSet<Object> {
+        private final String key;
+
+        IndexSet(final String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+            return o instanceof String && containsMember(key, (String) o);
+        }
+
+        @Override
+        public Iterator<Object> iterator() {
+            return new HashSet<>(asList(key)).iterator();
+        }
+
+        @Override
+        public int size() {
+            return new HashSet<>(asList(key)).size();
+        }
+    }
+
+    /**
+     * Appends records to the channel and keeps their offsets.
+     */
+    private static class RecordWriter {
+        private final FileChannel channel;
+
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+        /** Position of the next record. */
+        private int position = HEADER_SIZE;
+
+        private int[] offsets = new int[1024];
+
+        private int count;
+
+        RecordWriter(final FileChannel channel) throws IOException {
+            this.channel = channel;
+            channel.position(HEADER_SIZE);
+        }
+
+        void write(final byte type, final byte[] key, final byte[] value) {
+            final long size = 13L + key.length + value.length;
+            if (position + size > Integer.MAX_VALUE) {
+                throw new ElasticsearchException("Context properties index exceeds " + Integer.MAX_VALUE + " bytes.");
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = position;
+            try {
+                putInt(hash(type, key));
+                put(new byte[] { type });
+                putInt(key.length);
+                put(key);
+                putInt(value.length);
+                put(value);
+            } catch (final IOException e) {
+                throw new ElasticsearchException("Failed to write a context properties index.", e);
+            }
+            position += size;
+        }
+
+        private void putInt(final int value) throws IOException {
+            put(ByteBuffer.allocate(4).putInt(value).array());
+        }
+
+        private void put(final byte[] bytes) throws IOException {
+            int off = 0;
+            while (off < bytes.length) {
+                if (!writeBuffer.hasRemaining()) {
+                    flush();
+                }
+                final int length = Math.min(writeBuffer.remaining(), bytes.length - off);
+                writeBuffer.put(bytes, off, length);
+                off += length;
+            }
+        }
+
+        private void flush() throws IOException {
+            writeBuffer.flip();
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+            writeBuffer.clear();
+        }
+
+        /**
+         * @return a read-only mapping of the records written so far
+         */
+        ByteBuffer map() throws IOException {
+            flush();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+        }
+    }
+}
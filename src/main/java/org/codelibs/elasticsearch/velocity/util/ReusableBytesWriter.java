@@ -0,0 +1,217 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Unsynchronized Writer encoding chars to UTF-8 into a growable byte array, reused by the rendering thread.
+ */
+public class ReusableBytesWriter extends Writer {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /** Buffers larger than this are not kept by a thread after a render. */
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final String BREAKER_LABEL = "<velocity_render>";
+
+    private static final ThreadLocal<ReusableBytesWriter> LOCAL_WRITER =
+            ThreadLocal.withInitial(() -> new ReusableBytesWriter(DEFAULT_CAPACITY));
+
+    private byte[] buf;
+
+    private int count;
+
+    /** High surrogate written without its low surrogate yet, or 0. */
+    private char pendingSurrogate;
+
+    private boolean inUse;
+
+    /** Breaker charged with the buffer, or null. */
+    private CircuitBreaker breaker;
+
+    /** Bytes of the buffer charged to the breaker, which stay charged while the thread keeps the buffer. */
+    private long chargedBytes;
+
+    public ReusableBytesWriter(final int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Returns the writer of the current thread, or a new one if it is already in use.
+     *
+     * @param capacity the expected output length in bytes
+     * @return the empty writer
+     */
+    public static ReusableBytesWriter acquire(final int capacity) {
+        return acquire(capacity, null);
+    }
+
+    /**
+     * Returns the writer of the current thread, or a new one if it is already in use.
+     *
+     * @param capacity the expected output length in bytes
+     * @param breaker the breaker to charge the buffer to, including a buffer kept by the thread, or null
+     * @return the empty writer
+     */
+    public static ReusableBytesWriter acquire(final int capacity, final CircuitBreaker breaker) {
+        ReusableBytesWriter writer = LOCAL_WRITER.get();
+        if (writer.inUse) {
+            writer = new ReusableBytesWriter(0);
+        }
+        // charged before pre-sizing, which is the main allocation of large outputs
+        writer.setBreaker(breaker);
+        writer.ensureCapacity(capacity);
+        writer.count = 0;
+        writer.pendingSurrogate = 0;
+        writer.inUse = true;
+        return writer;
+    }
+
+    /**
+     * Gives the writer back to the current thread, which keeps its buffer charged unless it is too large to keep.
+     */
+    public void release() {
+        inUse = false;
+        count = 0;
+        pendingSurrogate = 0;
+        if (LOCAL_WRITER.get() != this) {
+            releaseCharge();
+        } else if (buf.length > MAX_RETAINED_CAPACITY) {
+            releaseCharge();
+            LOCAL_WRITER.set(new ReusableBytesWriter(DEFAULT_CAPACITY));
+        }
+    }
+
+    /**
+     * Charges the buffer to the breaker, moving the charge of a kept buffer from another breaker.
+     */
+    private void setBreaker(final CircuitBreaker breaker) {
+        if (this.breaker != breaker) {
+            releaseCharge();
+            this.breaker = breaker;
+        }
+        if (breaker != null) {
+            charge(buf.length - chargedBytes);
+        }
+    }
+
+    private void charge(final long bytes) {
+        if (bytes > 0) {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+            chargedBytes += bytes;
+        }
+    }
+
+    private void releaseCharge() {
+        if (chargedBytes > 0) {
+            breaker.addWithoutBreaking(-chargedBytes);
+            chargedBytes = 0;
+        }
+    }
+
+    public void ensureCapacity(final int capacity) {
+        if (capacity > buf.length) {
+            final int newCapacity = Math.max(capacity, buf.length << 1);
+            if (breaker != null) {
+                charge((long) newCapacity - buf.length);
+            }
+            buf = Arrays.copyOf(buf, newCapacity);
+        }
+    }
+
+    /**
+     * @return the number of encoded bytes
+     */
+    public int length() {
+        return count;
+    }
+
+    @Override
+    public void write(final int c) {
+        ensureCapacity(count + 4);
+        encode((char) c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        ensureCapacity(count + len * 3 + 1);
+        for (int i = off; i < off + len; i++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        ensureCapacity(count + len * 3 + 1);
+        for (int i = off; i < off + len; i++) {
+            encode(str.charAt(i));
+        }
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) {
+        final String str = String.valueOf(csq);
+        write(str, 0, str.length());
+        return this;
+    }
+
+    /**
+     * Encodes the char, assuming the buffer has room for 4 more bytes.
+     */
+    private void encode(final char c) {
+        if (pendingSurrogate != 0) {
+            final char high = pendingSurrogate;
+            pendingSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int codePoint = Character.toCodePoint(high, c);
+                buf[count++] = (byte) (0xF0 | codePoint >> 18);
+                buf[count++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buf[count++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buf[count++] = (byte) (0x80 | codePoint & 0x3F);
+                return;
+            }
+            buf[count++] = '?';
+        }
+        if (c < 0x80) {
+            buf[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buf[count++] = (byte) (0xC0 | c >> 6);
+            buf[count++] = (byte) (0x80 | c & 0x3F);
+        } else if (Character.isHighSurrogate(c)) {
+            pendingSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xE0 | c >> 12);
+            buf[count++] = (byte) (0x80 | c >> 6 & 0x3F);
+            buf[count++] = (byte) (0x80 | c & 0x3F);
+        }
+    }
+
+    @Override
+    public void flush() {
+        // nothing
+    }
+
+    @Override
+    public void close() {
+        // nothing
+    }
+
+    /**
+     * @return a copy of the encoded bytes, sized exactly
+     */
+    public BytesReference toBytesReference() {
+        if (pendingSurrogate != 0) {
+            ensureCapacity(count + 1);
+            buf[count++] = '?';
+            pendingSurrogate = 0;
+        }
+        return new BytesArray(Arrays.copyOf(buf, count));
+    }
+}
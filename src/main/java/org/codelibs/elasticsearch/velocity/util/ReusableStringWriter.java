@@ -0,0 +1,202 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+
+/**
+ * Unsynchronized Writer over a growable char array, reused by the rendering thread.
+ */
+public class ReusableStringWriter extends Writer {
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /** Buffers larger than this are not kept by a thread after a render. */
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    private static final String BREAKER_LABEL = "<velocity_render>";
+
+    private static final ThreadLocal<ReusableStringWriter> LOCAL_WRITER =
+            ThreadLocal.withInitial(() -> new ReusableStringWriter(DEFAULT_CAPACITY));
+
+    private char[] buf;
+
+    private int count;
+
+    /** UTF-8 bytes of the written chars beyond one byte per char, counted as they are written. */
+    private int utf8Extra;
+
+    private boolean inUse;
+
+    /** Breaker charged with the buffer, or null. */
+    private CircuitBreaker breaker;
+
+    /** Bytes of the buffer charged to the breaker, which stay charged while the thread keeps the buffer. */
+    private long chargedBytes;
+
+    public ReusableStringWriter(final int capacity) {
+        buf = new char[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Returns the writer of the current thread, or a new one if it is already in use.
+     *
+     * @param capacity the expected output length
+     * @return the empty writer
+     */
+    public static ReusableStringWriter acquire(final int capacity) {
+        return acquire(capacity, null);
+    }
+
+    /**
+     * Returns the writer of the current thread, or a new one if it is already in use.
+     *
+     * @param capacity the expected output length
+     * @param breaker the breaker to charge the buffer to, including a buffer kept by the thread, or null
+     * @return the empty writer
+     */
+    public static ReusableStringWriter acquire(final int capacity, final CircuitBreaker breaker) {
+        ReusableStringWriter writer = LOCAL_WRITER.get();
+        if (writer.inUse) {
+            writer = new ReusableStringWriter(0);
+        }
+        // charged before pre-sizing, which is the main allocation of large outputs
+        writer.setBreaker(breaker);
+        writer.ensureCapacity(capacity);
+        writer.count = 0;
+        writer.utf8Extra = 0;
+        writer.inUse = true;
+        return writer;
+    }
+
+    /**
+     * Gives the writer back to the current thread, which keeps its buffer charged unless it is too large to keep.
+     */
+    public void release() {
+        inUse = false;
+        count = 0;
+        utf8Extra = 0;
+        if (LOCAL_WRITER.get() != this) {
+            releaseCharge();
+        } else if (buf.length > MAX_RETAINED_CAPACITY) {
+            releaseCharge();
+            LOCAL_WRITER.set(new ReusableStringWriter(DEFAULT_CAPACITY));
+        }
+    }
+
+    /**
+     * Charges the buffer to the breaker, moving the charge of a kept buffer from another breaker.
+     */
+    private void setBreaker(final CircuitBreaker breaker) {
+        if (this.breaker != breaker) {
+            releaseCharge();
+            this.breaker = breaker;
+        }
+        if (breaker != null) {
+            charge(buf.length * 2L - chargedBytes);
+        }
+    }
+
+    private void charge(final long bytes) {
+        if (bytes > 0) {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+            chargedBytes += bytes;
+        }
+    }
+
+    private void releaseCharge() {
+        if (chargedBytes > 0) {
+            breaker.addWithoutBreaking(-chargedBytes);
+            chargedBytes = 0;
+        }
+    }
+
+    public void ensureCapacity(final int capacity) {
+        if (capacity > buf.length) {
+            final int newCapacity = Math.max(capacity, buf.length << 1);
+            if (breaker != null) {
+                charge((newCapacity - buf.length) * 2L);
+            }
+            buf = Arrays.copyOf(buf, newCapacity);
+        }
+    }
+
+    public int length() {
+        return count;
+    }
+
+    /**
+     * @return the UTF-8 size of the written chars, counting each half of a surrogate pair as 2 bytes
+     */
+    public int utf8Length() {
+        return count + utf8Extra;
+    }
+
+    private static int utf8Extra(final char c) {
+        return c < 0x80 ? 0 : c < 0x800 || Character.isSurrogate(c) ? 1 : 2;
+    }
+
+    /**
+     * Counts the chars appended from the offset while they are still in the CPU cache.
+     */
+    private void countUtf8(final int from) {
+        int extra = 0;
+        for (int i = from; i < count; i++) {
+            final char c = buf[i];
+            if (c >= 0x80) {
+                extra += utf8Extra(c);
+            }
+        }
+        utf8Extra += extra;
+    }
+
+    public char[] getBuffer() {
+        return buf;
+    }
+
+    @Override
+    public void write(final int c) {
+        ensureCapacity(count + 1);
+        buf[count++] = (char) c;
+        utf8Extra += utf8Extra((char) c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(cbuf, off, buf, count, len);
+        count += len;
+        countUtf8(count - len);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        ensureCapacity(count + len);
+        str.getChars(off, off + len, buf, count);
+        count += len;
+        countUtf8(count - len);
+    }
+
+    @Override
+    public Writer append(final CharSequence csq) {
+        final String str = String.valueOf(csq);
+        write(str, 0, str.length());
+        return this;
+    }
+
+    @Override
+    public void flush() {
+        // nothing
+    }
+
+    @Override
+    public void close() {
+        // nothing
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, count);
+    }
+}
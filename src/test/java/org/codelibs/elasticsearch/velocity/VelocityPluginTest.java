@@ -255,9 +255,20 @@ public class VelocityPluginTest {
 
         Files.write(new File(confDir, "props/file2.properties").toPath(),
                 "my_size.0=6\nmy_size.1=7\nmy_size.2=8\nmy_size.3=9\nmy_size.4=10".getBytes());
+        Files.write(new File(confDir, "file1.properties").toPath(), "my_size=7".getBytes());
 
         Thread.sleep(5000L);
 
+        query = "{\"id\":\"search_1\","
+                + "\"params\":{\"my_field\":\"category\",\"my_value\":\"1\",\"my_size\":\"50\"}}";
+        try (CurlResponse curlResponse =
+                EcrCurl.post(node, "/_search/script_template").header("Content-Type", "application/json").body(query).execute()) {
+            final Map<String, Object> contentMap = curlResponse.getContent(EcrCurl.jsonParser());
+            final Map<String, Object> hitsMap = (Map<String, Object>) contentMap.get("hits");
+            assertThat(100, is(((Map<String, Object>)hitsMap.get("total")).get("value")));
+            assertThat(7, is(((List<Map<String, Object>>) hitsMap.get("hits")).size()));
+        }
+
         query = "{\"id\":\"search_2\","
                 + "\"params\":{\"my_field\":\"category\",\"my_value\":\"1\",\"my_size\":\"50\"}}";
         try (CurlResponse curlResponse =
@@ -304,4 +315,160 @@ public class VelocityPluginTest {
             assertEquals("{\"template_output\":{\"query\":{\"match\":{\"category\":\"1\"}},\"size\":\"50\"}}", content);
         }
     }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_stats() throws Exception {
+        setupEs();
+
+        final Node node = runner.node();
+
+        final String query = "{\"lang\":\"velocity\",\"inline\":\"{\\\"size\\\":\\\"$my_size\\\"}\","
+                + "\"params\":{\"my_size\":\"50\"}}";
+        for (int i = 0; i < 3; i++) {
+            try (CurlResponse curlResponse =
+                    EcrCurl.post(node, "/_render/script_template").header("Content-Type", "application/json").body(query).execute()) {
+                assertEquals("{\"template_output\":{\"size\":\"50\"}}", curlResponse.getContentAsString());
+            }
+        }
+
+        try (CurlResponse curlResponse = EcrCurl.get(node, "/_nodes/velocity/stats").execute()) {
+            final Map<String, Object> contentMap = curlResponse.getContent(EcrCurl.jsonParser());
+            final Map<String, Object> nodesMap = (Map<String, Object>) contentMap.get("nodes");
+            assertEquals(1, nodesMap.size());
+            final Map<String, Object> statsMap = (Map<String, Object>) nodesMap.values().iterator().next();
+            assertEquals(1, ((Map<String, Object>) statsMap.get("compile")).get("count"));
+            assertEquals(3, ((Map<String, Object>) statsMap.get("render")).get("count"));
+            final Map<String, Object> scriptsMap = (Map<String, Object>) statsMap.get("scripts");
+            assertEquals(3, ((Map<String, Object>) ((Map<String, Object>) scriptsMap.get("_inline")).get("render")).get("count"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_ingest() throws Exception {
+        setupEs();
+
+        final Node node = runner.node();
+
+        final String pipeline = "{\"processors\":[{\"velocity\":{\"source\":\"${title} (${category})\",\"target_field\":\"label\"}},"
+                + "{\"velocity\":{\"source\":\"{\\\"name\\\":\\\"${title}\\\"}\",\"target_field\":\"meta\",\"json\":true}}]}";
+        try (CurlResponse curlResponse =
+                EcrCurl.put(node, "/_ingest/pipeline/velocity_1").header("Content-Type", "application/json").body(pipeline).execute()) {
+            final Map<String, Object> contentMap = curlResponse.getContent(EcrCurl.jsonParser());
+            assertThat(true, is(contentMap.get("acknowledged")));
+        }
+
+        try (CurlResponse curlResponse = EcrCurl.post(node, "/sample/_doc/1").param("pipeline", "velocity_1").param("refresh", "true")
+                .header("Content-Type", "application/json").body("{\"title\":\"test\",\"category\":1}").execute()) {
+            final Map<String, Object> contentMap = curlResponse.getContent(EcrCurl.jsonParser());
+            assertEquals("created", contentMap.get("result"));
+        }
+
+        try (CurlResponse curlResponse = EcrCurl.get(node, "/sample/_doc/1").execute()) {
+            final Map<String, Object> contentMap = curlResponse.getContent(EcrCurl.jsonParser());
+            final Map<String, Object> sourceMap = (Map<String, Object>) contentMap.get("_source");
+            assertEquals("test (1)", sourceMap.get("label"));
+            assertEquals("test", ((Map<String, Object>) sourceMap.get("meta")).get("name"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void test_batchRender() throws Exception {
+        setupEs();
+
+        final Node node = runner.node();
+
+        final String query = "{\"source\":\"{\\\"size\\\":$my_size}\",\"parallel\":true,"
+                + "\"params\":[{\"my_size\":1},{\"my_size\":2},{\"my_size\":3}]}";
+        try (CurlResponse curlResponse =
+                EcrCurl.post(node, "/_velocity/_render/_batch").header("Content-Type", "application/json").body(query).execute()) {
+            final Map<String, Object> contentMap = curlResponse.getContent(EcrCurl.jsonParser());
+            final List<String> outputs = (List<String>) contentMap.get("outputs");
+            assertEquals(3, outputs.size());
+            assertEquals("{\"size\":1}", outputs.get(0));
+            assertEquals("{\"size\":2}", outputs.get(1));
+            assertEquals("{\"size\":3}", outputs.get(2));
+        }
+
+        final String painlessQuery = "{\"source\":\"params.my_size\",\"lang\":\"painless\",\"params\":[{\"my_size\":1}]}";
+        try (CurlResponse curlResponse = EcrCurl.post(node, "/_velocity/_render/_batch").header("Content-Type", "application/json")
+                .body(painlessQuery).execute()) {
+            assertEquals(400, curlResponse.getHttpStatusCode());
+        }
+    }
+
+    @Test
+    public void test_reloadScript() throws Exception {
+        setupEs();
+
+        final Node node = runner.node();
+
+        final String query = "{\"lang\":\"velocity\",\"inline\":\"#parse(\\\"lib_search_query_1.vm\\\")\","
+                + "\"params\":{\"my_field\":\"category\",\"my_value\":\"1\",\"my_size\":\"50\"}}";
+        try (CurlResponse curlResponse =
+                EcrCurl.post(node, "/_render/script_template").header("Content-Type", "application/json").body(query).execute()) {
+            assertEquals("{\"template_output\":{\"query\":{\"match\":{\"category\":\"1\"}},\"size\":\"50\"}}",
+                    curlResponse.getContentAsString());
+        }
+
+        final File scriptDir = new File(esHomeDir, "node_1/config/scripts");
+        Files.write(new File(scriptDir, "lib_search_query_1.vm").toPath(),
+                "{\"query\":{\"term\":{\"${my_field}\":\"${my_value}\"}},\"size\":\"${my_size}\"}".getBytes());
+        Thread.sleep(6000L);
+
+        try (CurlResponse curlResponse =
+                EcrCurl.post(node, "/_render/script_template").header("Content-Type", "application/json").body(query).execute()) {
+            assertEquals("{\"template_output\":{\"query\":{\"term\":{\"category\":\"1\"}},\"size\":\"50\"}}",
+                    curlResponse.getContentAsString());
+        }
+    }
+
+    @Test
+    public void test_inlineMacro() throws Exception {
+        clusterName = "es-velocity-" + System.currentTimeMillis();
+        esHomeDir = File.createTempFile("eshome", "");
+        esHomeDir.delete();
+
+        final File scriptDir = new File(esHomeDir, "node_1/config/scripts");
+        scriptDir.mkdirs();
+        final File libraryFile = new File(scriptDir, "VM_global_library.vm");
+        Files.write(libraryFile.toPath(), ("#macro(termQuery $field $value){\"term\":{\"$field\":\"$value\"}}#end\n"
+                + "#macro(searchQuery $f $v $size){\"query\":#termQuery($f $v),\"size\":$size}#end").getBytes());
+
+        runner = new ElasticsearchClusterRunner();
+        runner.onBuild(new ElasticsearchClusterRunner.Builder() {
+            @Override
+            public void build(final int number, final Builder settingsBuilder) {
+                settingsBuilder.put("http.cors.enabled", true);
+                settingsBuilder.put("http.cors.allow-origin", "*");
+                settingsBuilder.put("script.velocity.macro.inline.enabled", true);
+                settingsBuilder.put("discovery.type", "single-node");
+            }
+        }).build(newConfigs().clusterName(clusterName).numOfNode(1)
+                .pluginTypes("org.codelibs.elasticsearch.velocity.VelocityPlugin,org.codelibs.elasticsearch.sstmpl.ScriptTemplatePlugin")
+                .basePath(esHomeDir.getAbsolutePath()));
+        runner.ensureGreen();
+
+        final Node node = runner.node();
+
+        final String query = "{\"lang\":\"velocity\",\"inline\":\"#searchQuery($my_field \\\"1\\\" 50)\","
+                + "\"params\":{\"my_field\":\"category\"}}";
+        try (CurlResponse curlResponse =
+                EcrCurl.post(node, "/_render/script_template").header("Content-Type", "application/json").body(query).execute()) {
+            assertEquals("{\"template_output\":{\"query\":{\"term\":{\"category\":\"1\"}},\"size\":50}}",
+                    curlResponse.getContentAsString());
+        }
+
+        Files.write(libraryFile.toPath(), ("#macro(termQuery $field $value){\"match\":{\"$field\":\"$value\"}}#end\n"
+                + "#macro(searchQuery $f $v $size){\"query\":#termQuery($f $v),\"size\":$size}#end").getBytes());
+        Thread.sleep(6000L);
+
+        try (CurlResponse curlResponse =
+                EcrCurl.post(node, "/_render/script_template").header("Content-Type", "application/json").body(query).execute()) {
+            assertEquals("{\"template_output\":{\"query\":{\"match\":{\"category\":\"1\"}},\"size\":50}}",
+                    curlResponse.getContentAsString());
+        }
+    }
 }
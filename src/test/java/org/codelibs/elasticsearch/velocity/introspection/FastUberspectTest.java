@@ -0,0 +1,95 @@
+package org.codelibs.elasticsearch.velocity.introspection;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FastUberspectTest {
+
+    private static final String MAP_TEMPLATE = "[$v.a][$v.b][$v.missing][$v.class][$v.Class][$v.empty][$v.size()][$v.isEmpty()]"
+            + "[$v.get(\"a\")][$v.get(\"missing\")][$v.containsKey(\"a\")][$v.keySet()][$v.values()][$v.entrySet()]"
+            + "[$v.getClass().getName()][$v.getOrDefault(\"missing\", \"x\")]";
+
+    private static final String LIST_TEMPLATE = "[$v.size()][$v.isEmpty()][$v.get(0)][$v.contains(\"a\")][$v.contains(1)]"
+            + "[$v.class][$v.empty][$v.indexOf(\"a\")]";
+
+    private static final String STRING_TEMPLATE = "[$v.length()][$v.isEmpty()][$v.trim()][$v.toLowerCase()][$v.toUpperCase()]"
+            + "[$v.class][$v.empty][$v.bytes.size()][$v.substring(1)]";
+
+    private RuntimeInstance defaultRuntime;
+
+    private RuntimeInstance fastRuntime;
+
+    @Before
+    public void setUp() throws Exception {
+        defaultRuntime = newRuntime(UberspectImpl.class.getName());
+        fastRuntime = newRuntime(FastUberspect.class.getName());
+    }
+
+    private static RuntimeInstance newRuntime(final String uberspect) throws Exception {
+        final RuntimeInstance runtimeInstance = new RuntimeInstance();
+        runtimeInstance.setProperty("runtime.introspector.uberspect", uberspect);
+        runtimeInstance.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+        runtimeInstance.init();
+        return runtimeInstance;
+    }
+
+    @Test
+    public void test_maps() throws Exception {
+        final Map<String, Object> hashMap = new HashMap<>();
+        hashMap.put("a", "1");
+        hashMap.put("b", Arrays.asList(1, 2));
+        hashMap.put("class", "c");
+        hashMap.put("Class", "C");
+        hashMap.put("empty", "e");
+        final List<Map<String, Object>> maps = Arrays.asList(hashMap, new LinkedHashMap<>(hashMap), new TreeMap<>(hashMap),
+                Collections.unmodifiableMap(hashMap), Collections.emptyMap(), new HashMap<>());
+        for (final Map<String, Object> map : maps) {
+            assertSameOutput(MAP_TEMPLATE, map);
+        }
+    }
+
+    @Test
+    public void test_lists() throws Exception {
+        final List<Object> arrayList = new ArrayList<>(Arrays.asList("a", 1, null));
+        final List<List<Object>> lists = Arrays.asList(arrayList, Arrays.asList("a", 1), Collections.unmodifiableList(arrayList),
+                Collections.emptyList(), new ArrayList<>());
+        for (final List<Object> list : lists) {
+            assertSameOutput(LIST_TEMPLATE, list);
+        }
+    }
+
+    @Test
+    public void test_strings() throws Exception {
+        for (final String value : Arrays.asList(" Abc ", "", "\u00c9t\u00e9")) {
+            assertSameOutput(STRING_TEMPLATE, value);
+        }
+    }
+
+    private void assertSameOutput(final String template, final Object value) {
+        final String expected = render(defaultRuntime, template, value);
+        assertEquals(String.valueOf(value), expected, render(fastRuntime, template, value));
+    }
+
+    private static String render(final RuntimeInstance runtimeInstance, final String template, final Object value) {
+        final VelocityContext context = new VelocityContext();
+        context.put("v", value);
+        final StringWriter writer = new StringWriter();
+        runtimeInstance.evaluate(context, writer, "test", template);
+        return writer.toString();
+    }
+}
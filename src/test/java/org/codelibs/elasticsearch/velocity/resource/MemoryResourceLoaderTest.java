@@ -0,0 +1,24 @@
+package org.codelibs.elasticsearch.velocity.resource;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MemoryResourceLoaderTest {
+
+    @Test
+    public void test_removeStaleSource() {
+        final MemoryResourceLoader loader = new MemoryResourceLoader();
+        // an evicted template and a concurrent compile of the same source
+        final Object evicted = loader.putSource("templ1.vm", "[1]");
+        final Object compiled = loader.putSource("templ1.vm", "[1]");
+
+        // the removal listener of the evicted template runs after the compile put its source
+        assertFalse(loader.removeSource("templ1.vm", evicted));
+        assertTrue(loader.resourceExists("templ1.vm"));
+
+        assertTrue(loader.removeSource("templ1.vm", compiled));
+        assertFalse(loader.resourceExists("templ1.vm"));
+    }
+}
@@ -0,0 +1,115 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MacroInlinerTest {
+
+    private static final String LIBRARY = "#macro(termQuery $field $value){\"term\":{\"$field\":\"$value\"}}#end\n"
+            + "#macro(searchQuery $f $v $size){\"query\":#termQuery($f $v),\"size\":$size}#end\n"
+            + "#macro(recurse $v)$v#if($v == \"a\")#recurse(\"b\")#end#end\n"
+            + "#macro(assign $v)#set($v = \"x\")[$v]#end\n"
+            + "#macro(deref $v)[$v.length()]#end\n"
+            + "#macro(wrap $v)[$v$!bodyContent]#end\n"
+            + "#macro(breakMacro $v)[$v#break$v]#end\n"
+            + "#macro(stopMacro $v)[$v#stop$v]#end\n"
+            + "#macro(interpolate $v)#set($s = \"[$v]\")$s#end\n";
+
+    private Path templateDir;
+
+    private RuntimeInstance runtimeInstance;
+
+    private MacroInliner inliner;
+
+    private int templateCount;
+
+    @Before
+    public void setUp() throws Exception {
+        templateDir = Files.createTempDirectory("macro_inliner");
+        Files.write(templateDir.resolve("VM_global_library.vm"), LIBRARY.getBytes(StandardCharsets.UTF_8));
+        runtimeInstance = new RuntimeInstance();
+        runtimeInstance.setProperty("file.resource.loader.path", templateDir.toFile().getAbsolutePath());
+        runtimeInstance.setProperty("velocimacro.permissions.allow.inline.to.replace.global", "true");
+        runtimeInstance.setProperty("runtime.log.logsystem.class", "org.apache.velocity.runtime.log.NullLogChute");
+        runtimeInstance.init();
+        inliner = MacroInliner.load(runtimeInstance);
+        assertNotNull(inliner);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> stream = Files.walk(templateDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test_inline() throws Exception {
+        final Map<String, Object> params = Collections.singletonMap("my_field", "category");
+
+        assertInlined(1, "#termQuery($my_field \"1\")", params, "{\"term\":{\"category\":\"1\"}}");
+        // nested calls are expanded with the call which contains them
+        assertInlined(2, "#searchQuery($my_field \"1\" 50)#termQuery(\"f\" 2)", params,
+                "{\"query\":{\"term\":{\"category\":\"1\"}},\"size\":50}{\"term\":{\"f\":\"2\"}}");
+        // a null argument renders the literal of the call
+        assertInlined(1, "#termQuery($missing \"1\")", params, "{\"term\":{\"$missing\":\"1\"}}");
+    }
+
+    @Test
+    public void test_notInlined() throws Exception {
+        final Map<String, Object> params = Collections.singletonMap("my_field", "category");
+
+        assertInlined(0, "#recurse(\"a\")", params, "ab");
+        assertInlined(0, "#assign($my_field)", params, null);
+        assertInlined(0, "#deref($my_field)", params, "[8]");
+        assertInlined(0, "#wrap($my_field)", params, "[category]");
+        assertInlined(0, "#breakMacro($my_field)after", params, null);
+        assertInlined(0, "#stopMacro($my_field)after", params, null);
+        assertInlined(0, "#interpolate($my_field)", params, "[category]");
+        assertInlined(0, "#macro(termQuery $a $b)local:$a:$b#end#termQuery($my_field \"1\")", params, "local:category:1");
+    }
+
+    /**
+     * Checks the number of expanded calls, and that the output is the same as without inlining.
+     *
+     * @param expected the expected output, or null to only compare the outputs
+     */
+    private void assertInlined(final int count, final String source, final Map<String, Object> params, final String expected)
+            throws Exception {
+        final String name = "template" + templateCount++ + ".vm";
+        Files.write(templateDir.resolve(name), source.getBytes(StandardCharsets.UTF_8));
+
+        final String output = render(runtimeInstance.getTemplate(name), params);
+        if (expected != null) {
+            assertEquals(expected, output);
+        }
+
+        // the file loader does not cache templates, so this is parsed again
+        final Template template = runtimeInstance.getTemplate(name);
+        assertEquals(source, count, inliner.inline(template));
+        assertEquals(source, output, render(template, params));
+    }
+
+    private static String render(final Template template, final Map<String, Object> params) {
+        final StringWriter writer = new StringWriter();
+        template.merge(new VelocityContext(new HashMap<>(params)), writer);
+        return writer.toString();
+    }
+}
@@ -0,0 +1,135 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TemplateStoreTest {
+
+    private Path workDir;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("vm_cache");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> stream = Files.walk(workDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test_putAndLoad() throws Exception {
+        final String source1 = "{\"query\":{\"match\":{\"$my_field\":\"$my_value\"}}}";
+        final String source2 = "##cache\n{\"size\":$my_size}";
+        final TemplateStore store = new TemplateStore(workDir, "1.0.0", Runnable::run);
+        store.put(VelocityScriptEngine.hash(source1), "search_1", source1);
+        store.put(VelocityScriptEngine.hash(source2), null, source2);
+
+        final List<TemplateStore.Entry> entries = new TemplateStore(workDir, "1.0.0", Runnable::run).load();
+        assertEquals(2, entries.size());
+        entries.sort(Comparator.comparing(TemplateStore.Entry::getSource));
+        assertEquals(source2, entries.get(0).getSource());
+        assertNull(entries.get(0).getName());
+        assertEquals(source1, entries.get(1).getSource());
+        assertEquals("search_1", entries.get(1).getName());
+        assertEquals(VelocityScriptEngine.hash(source1), entries.get(1).getHash());
+
+        store.remove(VelocityScriptEngine.hash(source1));
+        assertEquals(1, store.load().size());
+    }
+
+    @Test
+    public void test_taskOrder() throws Exception {
+        final String source = "{\"size\":$my_size}";
+        final String hash = VelocityScriptEngine.hash(source);
+        final List<Runnable> submitted = new ArrayList<>();
+        final TemplateStore store = new TemplateStore(workDir, "1.0.0", submitted::add);
+
+        // a template evicted and compiled again
+        store.put(hash, null, source);
+        store.remove(hash);
+        store.put(hash, null, source);
+        assertEquals(1, submitted.size());
+        submitted.remove(0).run();
+        assertEquals(1, store.load().size());
+
+        // a template compiled and evicted
+        store.remove(hash);
+        store.put(hash, null, source);
+        store.remove(hash);
+        assertEquals(1, submitted.size());
+        submitted.remove(0).run();
+        assertTrue(store.load().isEmpty());
+    }
+
+    @Test
+    public void test_longName() throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        while (buf.length() < 100000) {
+            buf.append("\u65e5{\"size\":$my_size}");
+        }
+        final String name = buf.toString();
+        final String hash = VelocityScriptEngine.hash(name);
+        final TemplateStore store = new TemplateStore(workDir, "1.0.0", Runnable::run);
+        store.put(hash, name, name);
+
+        final List<TemplateStore.Entry> entries = store.load();
+        assertEquals(1, entries.size());
+        assertEquals(name, entries.get(0).getName());
+        assertEquals(name, entries.get(0).getSource());
+    }
+
+    @Test
+    public void test_discardInvalidEntries() throws Exception {
+        final String source = "{\"size\":$my_size}";
+        final String hash = VelocityScriptEngine.hash(source);
+        final String otherHash = VelocityScriptEngine.hash("other");
+        final Path versionDir = workDir.resolve("1.0.0");
+        final TemplateStore store = new TemplateStore(workDir, "1.0.0", Runnable::run);
+        store.put(hash, null, source);
+        final byte[] validBytes = Files.readAllBytes(versionDir.resolve(hash + ".vmc"));
+
+        // corrupted entry
+        final byte[] corruptedBytes = validBytes.clone();
+        corruptedBytes[corruptedBytes.length / 2] ^= 0x01;
+        assertDiscarded(store, hash + ".vmc", corruptedBytes);
+        // valid entry renamed to another hash, failing the hash in the header
+        assertDiscarded(store, otherHash + ".vmc", validBytes);
+        // valid entry whose header has the hash of its file name, failing the hash of the source
+        store.put(otherHash, null, source);
+        assertDiscarded(store, otherHash + ".vmc", Files.readAllBytes(versionDir.resolve(otherHash + ".vmc")));
+        // file left by an interrupted write
+        assertDiscarded(store, hash + ".tmp", "{".getBytes(StandardCharsets.UTF_8));
+
+        // entries of another version
+        store.put(hash, null, source);
+        assertEquals(1, store.load().size());
+        assertTrue(new TemplateStore(workDir, "1.0.1", Runnable::run).load().isEmpty());
+        assertFalse(Files.exists(versionDir));
+    }
+
+    private void assertDiscarded(final TemplateStore store, final String fileName, final byte[] bytes) throws Exception {
+        final Path versionDir = workDir.resolve("1.0.0");
+        Files.write(versionDir.resolve(fileName), bytes);
+        assertTrue(store.load().isEmpty());
+        try (Stream<Path> stream = Files.list(versionDir)) {
+            assertEquals(0, stream.count());
+        }
+    }
+}
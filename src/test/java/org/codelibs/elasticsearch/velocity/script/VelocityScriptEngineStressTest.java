@@ -0,0 +1,293 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.TemplateScript;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compiles and renders a mix of templates from many threads sharing one engine,
+ * while context properties and macro libraries are reloaded, and checks every output.
+ * The run covers 1 to N threads; set -Dtests.stress.threads and -Dtests.stress.duration
+ * (millis per thread count) to change it, which also logs the throughput of each thread count.
+ */
+public class VelocityScriptEngineStressTest {
+
+    private static final Logger logger = LogManager.getLogger(VelocityScriptEngineStressTest.class);
+
+    private static final Pattern SIZE_PATTERN = Pattern.compile("\"size\":(\\d+)");
+
+    private static final int CACHE_VARIANTS = 200;
+
+    private static final String[] FIELDS = { "category", "msg", "id" };
+
+    private static final String[] VALUES = { "1", "2", "3", "4" };
+
+    private Path homeDir;
+
+    private Path propsFile;
+
+    private ThreadPool threadPool;
+
+    private VelocityScriptEngine engine;
+
+    /** The latest my_size written to the properties file. */
+    private final AtomicInteger latestSize = new AtomicInteger(1);
+
+    private final Queue<String> errors = new ConcurrentLinkedQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        homeDir = Files.createTempDirectory("velocity-stress");
+        final Path configDir = homeDir.resolve("config");
+        final Path scriptDir = configDir.resolve("scripts");
+        Files.createDirectories(scriptDir);
+        Files.write(scriptDir.resolve("query.vm"), "{\"match\":{\"$f\":\"$v\"}}".getBytes(StandardCharsets.UTF_8));
+        Files.write(scriptDir.resolve("VM_global_library.vm"),
+                "#macro(termQuery $field $value){\"term\":{\"$field\":\"$value\"}}#end".getBytes(StandardCharsets.UTF_8));
+        propsFile = configDir.resolve("file1.properties");
+        writeSize(1);
+
+        final Settings settings = Settings.builder()//
+                .put("path.home", homeDir.toString())//
+                .put("path.logs", homeDir.resolve("logs").toString())//
+                .put("node.name", "stress")//
+                .put("script.velocity.cache.max_size", 50)//
+                .put("script.velocity.context.props.file1", "file1.properties")//
+                .put("script.velocity.context.props.file1.interval", "100")//
+                .build();
+        threadPool = new ThreadPool(settings);
+        engine = new VelocityScriptEngine(settings, configDir);
+        engine.startWatching(threadPool);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (engine != null) {
+            engine.close();
+        }
+        if (threadPool != null) {
+            ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+        }
+        try (Stream<Path> stream = Files.walk(homeDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test_concurrentCompileAndExecute() throws Exception {
+        final int maxThreads = Integer.getInteger("tests.stress.threads", Math.max(4, Runtime.getRuntime().availableProcessors()));
+        final long duration = Long.getLong("tests.stress.duration", 2000L);
+        // throughput is only meaningful for runs sized on purpose
+        final boolean report = System.getProperty("tests.stress.threads") != null || System.getProperty("tests.stress.duration") != null;
+
+        final List<Integer> threadCounts = new ArrayList<>();
+        for (int threads = 1; threads < maxThreads; threads *= 2) {
+            threadCounts.add(threads);
+        }
+        threadCounts.add(maxThreads);
+
+        double baseline = 0;
+        for (final int threads : threadCounts) {
+            final double throughput = run(threads, duration);
+            if (baseline == 0) {
+                baseline = throughput;
+            }
+            if (report) {
+                logger.info(String.format(Locale.ROOT, "threads=%d, ops/s=%.0f, scaling=%.2fx", threads, throughput, throughput / baseline));
+            }
+            if (!errors.isEmpty()) {
+                fail(errors.size() + " errors with " + threads + " threads, first: " + errors.peek());
+            }
+        }
+
+        // all renders converge to the last written value once it is reloaded
+        final int finalSize = latestSize.get();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        String output = null;
+        while (System.nanoTime() < deadline) {
+            output = execute("{\"size\":$file1.my_size}", null, Collections.emptyMap());
+            if (output.equals("{\"size\":" + finalSize + "}")) {
+                break;
+            }
+            Thread.sleep(100L);
+        }
+        assertEquals("{\"size\":" + finalSize + "}", output);
+        assertEquals("{\"size\":" + finalSize + ",\"v\":\"1\"}",
+                execute("##memo\n{\"size\":$file1.my_size,\"v\":\"$v\"}", null, Collections.singletonMap("v", "1")));
+    }
+
+    /**
+     * Renders random templates from the threads for the duration, while another thread
+     * rewrites the properties file and reloads the macro libraries.
+     *
+     * @return the operations per second
+     */
+    private double run(final int threads, final long duration) throws Exception {
+        final AtomicLong operations = new AtomicLong();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(threads + 1);
+        final long[] endTime = new long[1];
+        for (int i = 0; i < threads; i++) {
+            final Thread worker = new Thread(() -> {
+                try {
+                    startLatch.await();
+                    long count = 0;
+                    while (System.nanoTime() < endTime[0]) {
+                        runOperation();
+                        count++;
+                    }
+                    operations.addAndGet(count);
+                } catch (final Throwable t) {
+                    errors.add(t.toString());
+                } finally {
+                    doneLatch.countDown();
+                }
+            }, "stress-" + i);
+            worker.start();
+        }
+        final Thread reloader = new Thread(() -> {
+            try {
+                startLatch.await();
+                int round = 0;
+                while (System.nanoTime() < endTime[0]) {
+                    Thread.sleep(200L);
+                    writeSize(latestSize.get() + 1);
+                    if (++round % 5 == 0) {
+                        engine.reloadMacroLibraries();
+                    }
+                }
+            } catch (final Throwable t) {
+                errors.add(t.toString());
+            } finally {
+                doneLatch.countDown();
+            }
+        }, "stress-reloader");
+        reloader.start();
+
+        final long startTime = System.nanoTime();
+        endTime[0] = startTime + TimeUnit.MILLISECONDS.toNanos(duration);
+        startLatch.countDown();
+        assertTrue(doneLatch.await(duration + 60000L, TimeUnit.MILLISECONDS));
+        return operations.get() * 1e9 / (System.nanoTime() - startTime);
+    }
+
+    private void runOperation() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final String f = FIELDS[random.nextInt(FIELDS.length)];
+        final String v = VALUES[random.nextInt(VALUES.length)];
+        final Map<String, Object> params = new HashMap<>();
+        params.put("f", f);
+        params.put("v", v);
+
+        switch (random.nextInt(8)) {
+        case 0:
+            checkSize(execute("{\"query\":{\"match\":{\"$f\":\"$v\"}},\"size\":$file1.my_size}", null, params),
+                    "{\"query\":{\"match\":{\"" + f + "\":\"" + v + "\"}},\"size\":%d}");
+            break;
+        case 1:
+            checkSize(execute("{\"query\":{\"match\":{\"$f\":\"$v\"}},\"size\":$file1.my_size}", "stored_search", params),
+                    "{\"query\":{\"match\":{\"" + f + "\":\"" + v + "\"}},\"size\":%d}");
+            break;
+        case 2: {
+            // distinct sources keep compiling and evicting "##cache" templates
+            final int variant = random.nextInt(CACHE_VARIANTS);
+            check(execute("##cache\n{\"term\":{\"$f\":\"$v\"},\"n\":" + variant + "}", null, params),
+                    "{\"term\":{\"" + f + "\":\"" + v + "\"},\"n\":" + variant + "}");
+            break;
+        }
+        case 3:
+            checkSize(execute("##memo\n{\"size\":$file1.my_size,\"v\":\"$v\"}", null, params), "{\"size\":%d,\"v\":\"" + v + "\"}");
+            break;
+        case 4: {
+            final int size = random.nextInt(5);
+            final List<Integer> list = new ArrayList<>();
+            final StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                list.add(i);
+                expected.append('[').append(i).append(']');
+            }
+            params.put("list", list);
+            check(execute("#foreach($i in $list)[$i]#end", null, params), expected.toString());
+            break;
+        }
+        case 5:
+            check(execute("#termQuery($f $v)", null, params), "{\"term\":{\"" + f + "\":\"" + v + "\"}}");
+            break;
+        case 6:
+            check(execute("#parse(\"query.vm\")", null, params), "{\"match\":{\"" + f + "\":\"" + v + "\"}}");
+            break;
+        default:
+            final VelocityBytesScript.Factory factory =
+                    engine.compile(null, "{\"term\":{\"$f\":\"$v\"}}", VelocityBytesScript.CONTEXT, Collections.emptyMap());
+            check(factory.newInstance(params).execute().utf8ToString(), "{\"term\":{\"" + f + "\":\"" + v + "\"}}");
+            break;
+        }
+    }
+
+    private String execute(final String source, final String id, final Map<String, Object> params) {
+        final TemplateScript.Factory factory = engine.compile(id, source, TemplateScript.CONTEXT, Collections.emptyMap());
+        return factory.newInstance(params).execute();
+    }
+
+    private void check(final String actual, final String expected) {
+        if (!expected.equals(actual)) {
+            errors.add("expected " + expected + " but was " + actual);
+        }
+    }
+
+    /**
+     * Checks the output rendered with one of the written my_size values.
+     */
+    private void checkSize(final String actual, final String format) {
+        final Matcher matcher = SIZE_PATTERN.matcher(actual);
+        if (!matcher.find()) {
+            errors.add("no size in " + actual);
+            return;
+        }
+        final int size = Integer.parseInt(matcher.group(1));
+        if (size < 1 || size > latestSize.get()) {
+            errors.add("unexpected size " + size + " in " + actual + ", written: 1 to " + latestSize.get());
+            return;
+        }
+        check(actual, String.format(format, size));
+    }
+
+    private void writeSize(final int size) throws IOException {
+        latestSize.set(size);
+        Files.write(propsFile, Arrays.asList("my_size=" + size), StandardCharsets.UTF_8);
+        // a distinct timestamp per write, as file times may be coarse
+        propsFile.toFile().setLastModified(1000000000000L + size * 1000L);
+    }
+}
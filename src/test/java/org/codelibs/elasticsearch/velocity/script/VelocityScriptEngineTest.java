@@ -0,0 +1,409 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.TemplateScript;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class VelocityScriptEngineTest {
+
+    private Path homeDir;
+
+    private Path configDir;
+
+    private VelocityScriptEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        homeDir = Files.createTempDirectory("velocity-engine");
+        configDir = homeDir.resolve("config");
+        Files.createDirectories(configDir.resolve("scripts"));
+        Files.write(configDir.resolve("scripts").resolve("VM_global_library.vm"),
+                "#macro(termQuery $field $value){\"term\":{\"$field\":\"$value\"}}#end".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (engine != null) {
+            engine.close();
+        }
+        try (Stream<Path> stream = Files.walk(homeDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private VelocityScriptEngine newEngine(final Settings.Builder builder) {
+        final Settings settings = builder.put("path.home", homeDir.toString())//
+                .put("path.logs", homeDir.resolve("logs").toString())//
+                .build();
+        engine = new VelocityScriptEngine(settings, configDir);
+        return engine;
+    }
+
+    private String execute(final String source, final Map<String, Object> params) {
+        return compile(source).newInstance(params).execute();
+    }
+
+    private TemplateScript.Factory compile(final String source) {
+        return engine.compile(null, source, TemplateScript.CONTEXT, Collections.emptyMap());
+    }
+
+    @Test
+    public void test_recompileEvictedCacheTemplate() throws Exception {
+        newEngine(Settings.builder().put("script.velocity.cache.max_size", 1));
+        final Map<String, Object> params = Collections.singletonMap("v", "1");
+
+        // a script keeps its template after the cache evicts it
+        final TemplateScript.Factory factory = compile("##cache\n#termQuery(\"f\" $v)");
+        assertEquals("{\"term\":{\"f\":\"1\"}}", factory.newInstance(params).execute());
+        assertEquals("[2]", execute("##cache\n[2]", params));
+
+        // the evicted template is parsed again by the new runtime
+        engine.reloadMacroLibraries();
+        assertEquals("{\"term\":{\"f\":\"1\"}}", factory.newInstance(params).execute());
+        assertEquals("{\"term\":{\"f\":\"1\"}}", execute("##cache\n#termQuery(\"f\" $v)", params));
+    }
+
+    @Test
+    public void test_memoHitAndMiss() throws Exception {
+        newEngine(Settings.builder());
+        final TemplateScript.Factory factory = compile("##memo\n$v:$list");
+        final Map<String, Object> params = new HashMap<>();
+        params.put("v", "a");
+        params.put("list", new ArrayList<>(Arrays.asList(1, 2)));
+
+        assertEquals("a:[1, 2]", factory.newInstance(params).execute());
+        assertMemoStats(0, 1);
+        assertEquals("a:[1, 2]", factory.newInstance(new HashMap<>(params)).execute());
+        assertMemoStats(1, 1);
+
+        // different params
+        final Map<String, Object> otherParams = new HashMap<>(params);
+        otherParams.put("v", "b");
+        assertEquals("b:[1, 2]", factory.newInstance(otherParams).execute());
+        assertMemoStats(1, 2);
+
+        // the cached key is not changed by params mutated after the render
+        @SuppressWarnings("unchecked")
+        final List<Object> list = (List<Object>) params.get("list");
+        list.add(3);
+        assertEquals("a:[1, 2, 3]", factory.newInstance(params).execute());
+        assertMemoStats(1, 3);
+        final Map<String, Object> original = new HashMap<>();
+        original.put("v", "a");
+        original.put("list", Arrays.asList(1, 2));
+        assertEquals("a:[1, 2]", factory.newInstance(original).execute());
+        assertMemoStats(2, 3);
+    }
+
+    @Test
+    public void test_memoInvalidation() throws Exception {
+        final Path file1 = configDir.resolve("file1.properties");
+        Files.write(file1, "my_size=10".getBytes(StandardCharsets.ISO_8859_1));
+        newEngine(Settings.builder().put("script.velocity.context.props.file1", "file1.properties")//
+                .put("script.velocity.output_cache.expire", "200ms"));
+        final TemplateScript.Factory factory = compile("##memo\n$v:$file1.my_size");
+        final Map<String, Object> params = Collections.singletonMap("v", "a");
+
+        assertEquals("a:10", factory.newInstance(params).execute());
+        assertEquals("a:10", factory.newInstance(params).execute());
+        assertMemoStats(1, 1);
+
+        // reloaded context properties
+        Files.write(file1, "my_size=20".getBytes(StandardCharsets.ISO_8859_1));
+        engine.getContextProperties("file1").reload();
+        assertEquals("a:20", factory.newInstance(params).execute());
+        assertMemoStats(1, 2);
+
+        // expired output
+        Thread.sleep(500L);
+        assertEquals("a:20", factory.newInstance(params).execute());
+        assertMemoStats(1, 3);
+    }
+
+    @Test
+    public void test_scriptChanged() throws Exception {
+        final Path part = configDir.resolve("scripts").resolve("part.vm");
+        Files.write(part, "[1]".getBytes(StandardCharsets.UTF_8));
+        newEngine(Settings.builder());
+        final TemplateScript.Factory factory = compile("##memo\n#parse(\"part.vm\")$v");
+        final TemplateScript.Factory parseFactory = compile("#parse(\"part.vm\")");
+        final Map<String, Object> params = Collections.singletonMap("v", "a");
+
+        assertEquals("[1]a", factory.newInstance(params).execute());
+        assertEquals("[1]", parseFactory.newInstance(params).execute());
+        assertMemoStats(0, 1);
+
+        // renders do not check the file, the watcher replaces the cached template
+        Files.write(part, "[2]".getBytes(StandardCharsets.UTF_8));
+        assertEquals("[1]", parseFactory.newInstance(params).execute());
+        engine.onScriptChanged(part);
+        assertEquals("[2]", parseFactory.newInstance(params).execute());
+        assertEquals("[2]a", factory.newInstance(params).execute());
+        assertMemoStats(0, 2);
+
+        // a template which does not parse keeps the previous one, and drops memoized outputs
+        Files.write(part, "#if(".getBytes(StandardCharsets.UTF_8));
+        engine.onScriptChanged(part);
+        assertEquals("[2]a", factory.newInstance(params).execute());
+        assertMemoStats(0, 3);
+    }
+
+    private void assertMemoStats(final long hits, final long misses) {
+        assertEquals(hits, engine.stats().getOutputCacheHits());
+        assertEquals(misses, engine.stats().getOutputCacheMisses());
+    }
+
+    @Test
+    public void test_storedScriptId() throws Exception {
+        // slow logs use the source hash of scripts without a stored id
+        assertEquals("search_1", VelocityScriptEngine.getStoredScriptId("search_1", "[$v]"));
+        assertNull(VelocityScriptEngine.getStoredScriptId("[$v]", "[$v]"));
+        assertNull(VelocityScriptEngine.getStoredScriptId(null, "[$v]"));
+    }
+
+    @Test
+    public void test_scriptStats() throws Exception {
+        newEngine(Settings.builder().put("script.velocity.cache.max_size", 2));
+        final Map<String, Object> params = Collections.singletonMap("v", "1");
+
+        // the script service passes the source of an inline script as its name
+        for (final String source : Arrays.asList("[$v]", "($v)", "{$v}")) {
+            engine.compile(source, source, TemplateScript.CONTEXT, Collections.emptyMap()).newInstance(params).execute();
+        }
+        assertEquals(Collections.singleton(VelocityScriptEngine.INLINE_SCRIPT_ID), engine.stats().getScripts().keySet());
+        assertEquals(3, engine.stats().getScripts().get(VelocityScriptEngine.INLINE_SCRIPT_ID).getRenderCount());
+
+        final Map<String, String> storedScripts = new HashMap<>();
+        storedScripts.put("stored_1", "1:$v");
+        storedScripts.put("stored_2", "2:$v");
+        engine.updateStoredScripts(storedScripts);
+        final TemplateScript.Factory factory =
+                engine.compile("stored_1", "1:$v", TemplateScript.CONTEXT, Collections.emptyMap());
+        assertEquals("1:1", factory.newInstance(params).execute());
+        assertEquals(1, engine.stats().getScripts().get("stored_1").getRenderCount());
+        assertTrue(engine.stats().getScripts().containsKey("stored_2"));
+
+        // a deleted stored script
+        storedScripts.remove("stored_2");
+        engine.updateStoredScripts(storedScripts);
+        assertFalse(engine.stats().getScripts().containsKey("stored_2"));
+
+        // an evicted template, whose script adds its counters again when it renders
+        execute("<$v>", params);
+        execute("<<$v>>", params);
+        assertFalse(engine.stats().getScripts().containsKey("stored_1"));
+        assertEquals("1:1", factory.newInstance(params).execute());
+        assertEquals(1, engine.stats().getScripts().get("stored_1").getRenderCount());
+    }
+
+    @Test
+    public void test_bytesContext() throws Exception {
+        newEngine(Settings.builder());
+        // 2, 3 and 4 byte sequences
+        final String value = "\u00e9\u65e5\ud83d\ude00";
+        final Map<String, Object> params = Collections.singletonMap("v", value);
+        final String expected = "{\"v\":\"" + value + "\"}";
+        final byte[] expectedBytes = expected.getBytes(StandardCharsets.UTF_8);
+
+        final VelocityBytesScript.Factory factory =
+                engine.compile(null, "{\"v\":\"$v\"}", VelocityBytesScript.CONTEXT, Collections.emptyMap());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(expectedBytes, BytesReference.toBytes(factory.newInstance(params).execute()));
+        }
+        assertEquals(expected, execute("{\"v\":\"$v\"}", params));
+        // both contexts report the UTF-8 size
+        assertEquals(4 * expectedBytes.length, engine.stats().getTotal().getOutputSizeInBytes());
+
+        // memoized output
+        final VelocityBytesScript.Factory memoFactory =
+                engine.compile(null, "##memo\n{\"v\":\"$v\"}", VelocityBytesScript.CONTEXT, Collections.emptyMap());
+        assertArrayEquals(expectedBytes, BytesReference.toBytes(memoFactory.newInstance(params).execute()));
+        assertArrayEquals(expectedBytes, BytesReference.toBytes(memoFactory.newInstance(params).execute()));
+    }
+
+    @Test
+    public void test_respecializeOnReload() throws Exception {
+        final Path file1 = configDir.resolve("file1.properties");
+        final Path file2 = configDir.resolve("file2.properties");
+        Files.write(file1, "my_size=10".getBytes(StandardCharsets.ISO_8859_1));
+        Files.write(file2, "my_name=a".getBytes(StandardCharsets.ISO_8859_1));
+        newEngine(Settings.builder().put("script.velocity.context.props.file1", "file1.properties")//
+                .put("script.velocity.context.props.file2", "file2.properties"));
+        final TemplateScript.Factory factory = compile("size:$file1.my_size");
+        final Map<String, Object> params = Collections.emptyMap();
+        assertEquals("size:10", factory.newInstance(params).execute());
+
+        // the folded value is used until the file is reloaded
+        Files.write(file1, "my_size=20".getBytes(StandardCharsets.ISO_8859_1));
+        engine.getContextProperties("file1").load();
+        assertEquals("size:10", factory.newInstance(params).execute());
+
+        // a reload of properties which were not folded keeps the specialization
+        engine.getContextProperties("file2").reload();
+        assertEquals("size:10", factory.newInstance(params).execute());
+
+        // the reload listener folds the new value
+        engine.getContextProperties("file1").reload();
+        assertEquals("size:20", factory.newInstance(params).execute());
+    }
+
+    @Test
+    public void test_nullParam() throws Exception {
+        Files.write(configDir.resolve("file1.properties"), "my_size=10".getBytes(StandardCharsets.ISO_8859_1));
+        newEngine(Settings.builder().put("script.velocity.context.props.file1", "file1.properties"));
+        final Map<String, Object> params = new HashMap<>();
+        params.put("file1", null);
+
+        // a null param shadows the context properties
+        assertEquals("size:10", execute("size:$file1.my_size", Collections.emptyMap()));
+        assertEquals("size:", execute("size:$!file1.my_size", params));
+        assertEquals("size:[]", execute("size:[$!file1]", params));
+    }
+
+    @Test
+    public void test_specializeWithMacroCall() throws Exception {
+        Files.write(configDir.resolve("file1.properties"), "my_size=10".getBytes(StandardCharsets.ISO_8859_1));
+        Files.write(configDir.resolve("scripts").resolve("VM_global_library.vm"),
+                "#macro(overrideSize)#set($file1 = {\"my_size\":\"99\"})#end".getBytes(StandardCharsets.UTF_8));
+        newEngine(Settings.builder().put("script.velocity.context.props.file1", "file1.properties"));
+        final Map<String, Object> params = Collections.emptyMap();
+
+        assertEquals("size:10", execute("size:$file1.my_size", params));
+        // the macro assigns the name in the global scope
+        assertEquals("size:99", execute("#overrideSize()size:$file1.my_size", params));
+    }
+
+    @Test
+    public void test_maxVisits() throws Exception {
+        newEngine(Settings.builder().put("script.velocity.render.max_visits", 100));
+        final Map<String, Object> params = Collections.singletonMap("v", "1");
+
+        assertEquals("12345", execute("#foreach($i in [1..5])$i#end", params));
+        assertRejected(() -> execute("#foreach($i in [1..1000])$i#end", params), "Template exceeded the max visits: 100");
+    }
+
+    @Test
+    public void test_maxTime() throws Exception {
+        newEngine(Settings.builder().put("script.velocity.render.max_time", "50ms"));
+        final Map<String, Object> params = Collections.singletonMap("v", "1");
+
+        assertEquals("1", execute("$v", params));
+        assertRejected(() -> execute("#foreach($i in [1..100000])#foreach($j in [1..100000])#set($x = $j)#end#end", params),
+                "Template exceeded the max render time.");
+    }
+
+    @Test
+    public void test_maxOutputSize() throws Exception {
+        newEngine(Settings.builder().put("script.velocity.render.max_output_size", "10b"));
+        final Map<String, Object> params = Collections.singletonMap("v", "\u00e9");
+
+        // 5 chars encoded into 10 bytes
+        assertEquals("\u00e9\u00e9\u00e9\u00e9\u00e9", execute("$v$v$v$v$v", params));
+        assertRejected(() -> execute("$v$v$v$v$v$v", params), "Template exceeded the max output size: 10 bytes");
+        assertRejected(() -> execute("01234567890", params), "Template exceeded the max output size: 10 bytes");
+    }
+
+    @Test
+    public void test_circuitBreaker() throws Exception {
+        newEngine(Settings.builder());
+        final Map<String, Object> params = Collections.singletonMap("v", "1");
+        final TestCircuitBreaker breaker = new TestCircuitBreaker(16 * 1024 * 1024);
+        engine.setCircuitBreaker(breaker);
+
+        // 2M chars grow the writer beyond any buffer retained by the thread
+        final String output = execute("#foreach($i in [1..200000])0123456789#end", params);
+        assertEquals(2000000, output.length());
+        assertTrue(breaker.maxUsed > 0);
+        assertEquals(0, breaker.used);
+
+        breaker.limit = 1024 * 1024;
+        breaker.maxUsed = 0;
+        try {
+            execute("#foreach($i in [1..200000])9876543210#end", params);
+            fail();
+        } catch (final CircuitBreakingException e) {
+            // expected
+        }
+        assertTrue(breaker.maxUsed <= breaker.limit);
+        // the buffer kept by the thread stays charged
+        assertTrue(breaker.used > 0);
+
+        engine.setCircuitBreaker(null);
+        execute("$v", params);
+        assertEquals(0, breaker.used);
+    }
+
+    private static void assertRejected(final Runnable render, final String message) {
+        try {
+            render.run();
+            fail();
+        } catch (final RuntimeException e) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (message.equals(t.getMessage())) {
+                    return;
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static class TestCircuitBreaker extends NoopCircuitBreaker {
+        private long limit;
+
+        private long used;
+
+        private long maxUsed;
+
+        TestCircuitBreaker(final long limit) {
+            super("test");
+            this.limit = limit;
+        }
+
+        @Override
+        public double addEstimateBytesAndMaybeBreak(final long bytes, final String label) {
+            if (used + bytes > limit) {
+                throw new CircuitBreakingException("[test] data for [" + label + "] would be too large", used + bytes, limit,
+                        CircuitBreaker.Durability.TRANSIENT);
+            }
+            used += bytes;
+            maxUsed = Math.max(maxUsed, used);
+            return used;
+        }
+
+        @Override
+        public long addWithoutBreaking(final long bytes) {
+            used += bytes;
+            return used;
+        }
+
+        @Override
+        public long getUsed() {
+            return used;
+        }
+    }
+}
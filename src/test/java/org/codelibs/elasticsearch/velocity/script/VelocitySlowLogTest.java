@@ -0,0 +1,55 @@
+package org.codelibs.elasticsearch.velocity.script;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+public class VelocitySlowLogTest {
+
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void test_scriptThresholds() throws Exception {
+        final VelocitySlowLog slowLog = new VelocitySlowLog(Settings.builder()//
+                .put("script.velocity.slowlog.threshold.render.warn", "500ms")//
+                .put("script.velocity.slowlog.threshold.render.info", "200ms")//
+                .put("script.velocity.slowlog.threshold.compile.warn", "1s")//
+                .put("script.velocity.slowlog.scripts.search_1.threshold.render.warn", "50ms")//
+                .put("script.velocity.slowlog.scripts.search.v2.threshold.render.info", "-1")//
+                .put("script.velocity.slowlog.scripts.search.v2.threshold.compile.debug", "10ms")//
+                .build());
+
+        // node-level thresholds
+        assertEquals(Level.WARN, slowLog.getRenderLevel("other", 600 * MILLIS));
+        assertEquals(Level.INFO, slowLog.getRenderLevel("other", 300 * MILLIS));
+        assertNull(slowLog.getRenderLevel("other", 100 * MILLIS));
+
+        // the levels set for a script override the node-level ones
+        assertEquals(Level.WARN, slowLog.getRenderLevel("search_1", 100 * MILLIS));
+        assertNull(slowLog.getRenderLevel("search_1", 10 * MILLIS));
+        assertEquals(Level.WARN, slowLog.getRenderLevel("search.v2", 600 * MILLIS));
+        assertNull(slowLog.getRenderLevel("search.v2", 300 * MILLIS));
+        assertEquals(Level.DEBUG, slowLog.getCompileLevel("search.v2", 20 * MILLIS));
+        assertEquals(Level.WARN, slowLog.getCompileLevel("search.v2", 2000 * MILLIS));
+        assertNull(slowLog.getCompileLevel("search_1", 20 * MILLIS));
+    }
+
+    @Test
+    public void test_invalidScriptThresholds() throws Exception {
+        for (final String key : new String[] { "search_1.render.warn", "search_1.threshold.render.error",
+                "search_1.threshold.search.warn" }) {
+            try {
+                new VelocitySlowLog(Settings.builder().put("script.velocity.slowlog.scripts." + key, "10ms").build());
+                fail(key);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedContextPropertiesTest {
+
+    private Path tempDir;
+
+    private File propsFile;
+
+    @Before
+    public void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("mapped_props");
+        propsFile = tempDir.resolve("lookup.properties").toFile();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        try (Stream<Path> stream = Files.walk(tempDir)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test_sameAsHeap() throws Exception {
+        writeProps("my_size=10", "dup=1", "dup=2", "name=\\u65e5\\u672c", "syn.0=a", "syn.1=b", "syn.2=a", "syn.4=z", "x.01=q");
+        final ContextProperties heap = new ContextProperties(propsFile);
+        final MappedContextProperties mapped = new MappedContextProperties(propsFile, tempDir.toFile(), "lookup");
+
+        assertEquals(heap.size(), mapped.size());
+        assertEquals(new HashMap<>(heap), new HashMap<>(mapped));
+        assertEquals("10", mapped.get("my_size"));
+        assertEquals("2", mapped.getProperty("dup"));
+        assertEquals("\u65e5\u672c", mapped.get("name"));
+        assertNull(mapped.get("none"));
+        assertFalse(mapped.containsKey(1));
+
+        final List<Object> list = mapped.getAsList("syn");
+        assertEquals(heap.getAsList("syn"), list);
+        assertEquals(Arrays.asList("a", "b", "a"), list);
+        final Set<Object> set = mapped.getAsSet("syn");
+        assertEquals(heap.getAsSet("syn"), set);
+        assertTrue(set.contains("a"));
+        assertTrue(set.contains("b"));
+        assertFalse(set.contains("z"));
+        assertTrue(mapped.getAsSet("x").isEmpty());
+        assertTrue(mapped.getAsList("none").isEmpty());
+    }
+
+    @Test
+    public void test_reload() throws Exception {
+        final String[] lines = new String[10000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = "boost.term" + i + "=" + i;
+        }
+        writeProps(lines);
+        final MappedContextProperties mapped = new MappedContextProperties(propsFile, tempDir.toFile(), "lookup");
+        final Map<Object, Object> before = new HashMap<>(mapped);
+        assertEquals(10000, before.size());
+        assertEquals("9999", mapped.get("boost.term9999"));
+
+        writeProps("boost.term1=100");
+        mapped.load();
+        assertEquals(1, mapped.size());
+        assertEquals("100", mapped.get("boost.term1"));
+        assertNull(mapped.get("boost.term9999"));
+        // the previous index file is deleted
+        try (Stream<Path> stream = Files.list(tempDir)) {
+            assertEquals(1, stream.filter(path -> path.getFileName().toString().endsWith(".idx")).count());
+        }
+
+        MappedContextProperties.deleteIndexFiles(tempDir.toFile());
+        try (Stream<Path> stream = Files.list(tempDir)) {
+            assertEquals(0, stream.filter(path -> path.getFileName().toString().endsWith(".idx")).count());
+        }
+    }
+
+    private void writeProps(final String... lines) throws Exception {
+        Files.write(propsFile.toPath(), Arrays.asList(lines), StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,98 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+public class ReusableBytesWriterTest {
+
+    @Test
+    public void test_encode() throws Exception {
+        // 1, 2, 3 and 4 byte sequences
+        final String text = "a\u00e9\u65e5\ud83d\ude00z";
+        final ReusableBytesWriter writer = new ReusableBytesWriter(16);
+        writer.write(text);
+        assertEquals(text.getBytes(StandardCharsets.UTF_8).length, writer.length());
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), toBytes(writer));
+
+        final ReusableBytesWriter charsWriter = new ReusableBytesWriter(16);
+        charsWriter.write(text.toCharArray(), 0, text.length());
+        charsWriter.write('!');
+        assertArrayEquals((text + "!").getBytes(StandardCharsets.UTF_8), toBytes(charsWriter));
+    }
+
+    @Test
+    public void test_splitSurrogatePair() throws Exception {
+        final String text = "x\ud83d\ude00y";
+        final ReusableBytesWriter writer = new ReusableBytesWriter(16);
+        writer.write(text, 0, 2);
+        // the high surrogate waits for the next write
+        assertEquals(1, writer.length());
+        writer.write(text, 2, 2);
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), toBytes(writer));
+
+        final ReusableBytesWriter charWriter = new ReusableBytesWriter(16);
+        charWriter.write('\ud83d');
+        charWriter.write('\ude00');
+        assertArrayEquals("\ud83d\ude00".getBytes(StandardCharsets.UTF_8), toBytes(charWriter));
+    }
+
+    @Test
+    public void test_loneSurrogates() throws Exception {
+        // same replacement as String.getBytes(UTF_8)
+        for (final String text : Arrays.asList("a\ud83db", "a\ude00b", "\ude00\ud83d", "a\ud83d\ud83d\ude00", "a\ud83d")) {
+            final ReusableBytesWriter writer = new ReusableBytesWriter(16);
+            writer.write(text);
+            assertArrayEquals(text, text.getBytes(StandardCharsets.UTF_8), toBytes(writer));
+        }
+    }
+
+    @Test
+    public void test_grow() throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            buf.append(i % 2 == 0 ? 'a' : '\u65e5');
+        }
+        final String text = buf.toString();
+        final ReusableBytesWriter writer = new ReusableBytesWriter(16);
+        for (int i = 0; i < text.length(); i += 7) {
+            writer.write(text, i, Math.min(7, text.length() - i));
+        }
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), toBytes(writer));
+    }
+
+    @Test
+    public void test_acquireAndRelease() throws Exception {
+        final ReusableBytesWriter writer = ReusableBytesWriter.acquire(16);
+        writer.write("abc");
+        // nested renders get another writer
+        final ReusableBytesWriter nested = ReusableBytesWriter.acquire(16);
+        assertNotSame(writer, nested);
+        nested.release();
+        writer.release();
+
+        final ReusableBytesWriter reused = ReusableBytesWriter.acquire(16);
+        assertSame(writer, reused);
+        assertEquals(0, reused.length());
+        // a buffer over the retention cap is not kept
+        reused.write(new char[2 * 1024 * 1024], 0, 2 * 1024 * 1024);
+        reused.release();
+        final ReusableBytesWriter replaced = ReusableBytesWriter.acquire(16);
+        assertNotSame(reused, replaced);
+        replaced.release();
+        final ReusableBytesWriter kept = ReusableBytesWriter.acquire(16);
+        assertSame(replaced, kept);
+        kept.release();
+    }
+
+    private static byte[] toBytes(final ReusableBytesWriter writer) {
+        return BytesReference.toBytes(writer.toBytesReference());
+    }
+}
@@ -0,0 +1,87 @@
+package org.codelibs.elasticsearch.velocity.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.junit.Test;
+
+public class ReusableStringWriterTest {
+
+    @Test
+    public void test_utf8Length() throws Exception {
+        // 1, 2, 3 and 4 byte sequences
+        final String text = "a\u00e9\u65e5\ud83d\ude00z";
+        final int bytes = text.getBytes(StandardCharsets.UTF_8).length;
+
+        final ReusableStringWriter writer = ReusableStringWriter.acquire(4);
+        try {
+            writer.write(text);
+            assertEquals(bytes, writer.utf8Length());
+            writer.write(text.toCharArray(), 1, 2);
+            writer.write('\u00e9');
+            assertEquals(bytes + 5 + 2, writer.utf8Length());
+            assertEquals(text.length() + 3, writer.length());
+        } finally {
+            writer.release();
+        }
+
+        // the count starts over for the next render
+        final ReusableStringWriter reused = ReusableStringWriter.acquire(4);
+        try {
+            reused.write("ab");
+            assertEquals(2, reused.utf8Length());
+        } finally {
+            reused.release();
+        }
+    }
+
+    @Test
+    public void test_circuitBreaker() throws Exception {
+        final CountingBreaker breaker = new CountingBreaker();
+
+        // the pre-sized buffer is charged
+        final ReusableStringWriter writer = ReusableStringWriter.acquire(100000, breaker);
+        assertEquals(writer.getBuffer().length * 2L, breaker.used);
+        writer.write(new char[300000], 0, 300000);
+        assertEquals(writer.getBuffer().length * 2L, breaker.used);
+
+        // a writer for a nested render is charged until it is released
+        final ReusableStringWriter nested = ReusableStringWriter.acquire(1000, breaker);
+        assertEquals((writer.getBuffer().length + nested.getBuffer().length) * 2L, breaker.used);
+        nested.release();
+        assertEquals(writer.getBuffer().length * 2L, breaker.used);
+
+        // the buffer kept by the thread stays charged once
+        writer.release();
+        assertEquals(writer.getBuffer().length * 2L, breaker.used);
+        final ReusableStringWriter reused = ReusableStringWriter.acquire(16, breaker);
+        assertEquals(reused.getBuffer().length * 2L, breaker.used);
+        reused.release();
+
+        // a render without the breaker takes the charge of the kept buffer off it
+        ReusableStringWriter.acquire(16).release();
+        assertEquals(0, breaker.used);
+    }
+
+    private static class CountingBreaker extends NoopCircuitBreaker {
+        private long used;
+
+        CountingBreaker() {
+            super("test");
+        }
+
+        @Override
+        public double addEstimateBytesAndMaybeBreak(final long bytes, final String label) {
+            used += bytes;
+            return used;
+        }
+
+        @Override
+        public long addWithoutBreaking(final long bytes) {
+            used += bytes;
+            return used;
+        }
+    }
+}